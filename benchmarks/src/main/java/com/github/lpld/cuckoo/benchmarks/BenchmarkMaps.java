@@ -0,0 +1,106 @@
+package com.github.lpld.cuckoo.benchmarks;
+
+import com.github.lpld.cuckoo.NotThreadSafeCuckooHashMap;
+import com.github.lpld.cuckoo.StripedCuckooHashMap;
+import com.github.lpld.cuckoo.ThreadSafeCuckooHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps and keys shared by the benchmarks.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+final class BenchmarkMaps {
+
+  private BenchmarkMaps() {
+  }
+
+  /**
+   * Creates an empty map with room for {@code 2 * capacity} entries: two tables of
+   * {@code capacity} slots for the cuckoo maps, or of {@code capacity / 4} buckets of 4 slots for
+   * the striped one, and a table of {@code 2 * capacity} buckets for the others. Filling it with
+   * {@code loadFactor * 2 * capacity} entries therefore leaves all of the maps equally full.
+   */
+  static Map<Object, Object> create(String impl, int capacity) {
+    if ("NotThreadSafe".equals(impl)) {
+      return new NotThreadSafeCuckooHashMap<Object, Object>(capacity);
+    }
+    if ("ThreadSafe".equals(impl)) {
+      return new ThreadSafeCuckooHashMap<Object, Object>(capacity);
+    }
+    if ("Striped".equals(impl)) {
+      return new StripedCuckooHashMap<Object, Object>(capacity / 4, 4);
+    }
+    if ("HashMap".equals(impl)) {
+      return new HashMap<Object, Object>(2 * capacity, 1f);
+    }
+    if ("ConcurrentHashMap".equals(impl)) {
+      return new ConcurrentHashMap<Object, Object>(2 * capacity, 1f);
+    }
+    throw new IllegalArgumentException("Unknown map: " + impl);
+  }
+
+  /**
+   * Looks up several keys with {@code getAll} of the cuckoo maps that have it, or with a loop of
+   * {@code get}.
+   *
+   * @return number of keys found
+   */
+  @SuppressWarnings("unchecked")
+  static int getAll(Map<Object, Object> map, Object[] keys, Object[] values) {
+    if (map instanceof NotThreadSafeCuckooHashMap) {
+      return ((NotThreadSafeCuckooHashMap<Object, Object>) map).getAll(keys, values);
+    }
+    if (map instanceof ThreadSafeCuckooHashMap) {
+      return ((ThreadSafeCuckooHashMap<Object, Object>) map).getAll(keys, values);
+    }
+
+    int found = 0;
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = map.get(keys[i]);
+      if (values[i] != null) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return {@code count} distinct keys of the given type in random order
+   */
+  static Object[] keys(String keyType, int count, long seed) {
+    Random random = new Random(seed);
+    Set<Object> keys = new HashSet<Object>();
+    while (keys.size() < count) {
+      long k = random.nextLong();
+      if ("long".equals(keyType)) {
+        keys.add(k);
+      } else if ("string".equals(keyType)) {
+        keys.add("key_" + Long.toHexString(k));
+      } else {
+        throw new IllegalArgumentException("Unknown key type: " + keyType);
+      }
+    }
+
+    List<Object> list = new ArrayList<Object>(keys);
+    Collections.shuffle(list, random);
+    return list.toArray();
+  }
+
+  /**
+   * @return index of the next key to use in an array of {@code length} keys
+   */
+  static int next(int index, int length) {
+    return ++index == length ? 0 : index;
+  }
+}
@@ -0,0 +1,148 @@
+package com.github.lpld.cuckoo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the lock-free {@link com.github.lpld.cuckoo.ThreadSafeCuckooHashMap}, the
+ * lock-striped {@link com.github.lpld.cuckoo.StripedCuckooHashMap} and
+ * {@link java.util.concurrent.ConcurrentHashMap} shared by several threads, for different shares
+ * of reads.
+ *
+ * <p>JMH can't take the number of threads as a {@code @Param}, so {@link #main} runs the
+ * benchmarks once for each of {@link #THREADS} to show how the maps scale. A single run from the
+ * shaded jar uses 4 threads unless given with {@code -t}, and the same sweep is:
+ * <pre>
+ * for t in 1 2 4 8; do java -jar benchmarks.jar ConcurrentMapBenchmark -t $t; done
+ * </pre>
+ *
+ * <p>A write either replaces the value of a present key or, every other time, puts an absent key
+ * and removes it right away, so the size of the map stays close to {@code loadFactor} of its
+ * slots.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ConcurrentMapBenchmark {
+
+  /**
+   * Numbers of threads that {@link #main} runs the benchmarks with.
+   */
+  static final int[] THREADS = {1, 2, 4, 8};
+
+  @Param({"ThreadSafe", "Striped", "ConcurrentHashMap"})
+  String impl;
+
+  @Param({"string", "long"})
+  String keyType;
+
+  /**
+   * Part of the slots of the map that is taken.
+   */
+  @Param({"0.25", "0.45"})
+  float loadFactor;
+
+  /**
+   * Percentage of the operations of {@link #mixed} that are lookups.
+   */
+  @Param({"100", "90", "50"})
+  int readPercent;
+
+  @Param({"65536"})
+  int capacity;
+
+  Map<Object, Object> map;
+  Object[] present;
+  Object[] absent;
+
+  @Setup
+  public void setUp() {
+    int size = (int) (loadFactor * 2 * capacity);
+    Object[] keys = BenchmarkMaps.keys(keyType, 2 * size, 42);
+    present = Arrays.copyOfRange(keys, 0, size);
+    absent = Arrays.copyOfRange(keys, size, 2 * size);
+
+    map = BenchmarkMaps.create(impl, capacity);
+    for (Object key : present) {
+      map.put(key, key);
+    }
+  }
+
+  /**
+   * Per-thread sequence of random numbers that doesn't allocate.
+   */
+  @State(Scope.Thread)
+  public static class ThreadState {
+
+    private long x;
+
+    @Setup
+    public void setUp() {
+      x = ThreadLocalRandom.current().nextLong() | 1;
+    }
+
+    int nextInt(int bound) {
+      x ^= x << 13;
+      x ^= x >>> 7;
+      x ^= x << 17;
+      return (int) ((x >>> 33) % bound);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : THREADS) {
+      Options options = new OptionsBuilder()
+          .include("\\." + ConcurrentMapBenchmark.class.getSimpleName() + "\\.")
+          .threads(threads)
+          .build();
+      new Runner(options).run();
+    }
+  }
+
+  @Benchmark
+  public Object get(ThreadState t) {
+    return map.get(present[t.nextInt(present.length)]);
+  }
+
+  @Benchmark
+  public Object mixed(ThreadState t) {
+    int op = t.nextInt(200);
+    if (op < 2 * readPercent) {
+      return map.get(present[t.nextInt(present.length)]);
+    }
+
+    if ((op & 1) == 0) {
+      return map.put(present[t.nextInt(present.length)], absent[t.nextInt(absent.length)]);
+    }
+
+    Object key = absent[t.nextInt(absent.length)];
+    map.put(key, key);
+    return map.remove(key);
+  }
+}
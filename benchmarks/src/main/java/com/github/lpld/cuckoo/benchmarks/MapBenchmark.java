@@ -0,0 +1,150 @@
+package com.github.lpld.cuckoo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded lookups and updates of the cuckoo maps compared with {@link java.util.HashMap}
+ * and {@link java.util.concurrent.ConcurrentHashMap}.
+ *
+ * <p>Each map is filled up to {@code loadFactor} of its slots and the size is kept there: updates
+ * either replace the value of a present key or put an absent key and remove it right away. It
+ * runs in a single thread on purpose; {@link ConcurrentMapBenchmark} measures the maps under
+ * contention for several numbers of threads.
+ *
+ * <p>{@link #main} runs {@link #get}, {@link #replace} and {@link #putRemove} with the GC profiler,
+ * which reports the bytes allocated per operation as {@code gc.alloc.rate.norm}. The same run from
+ * the shaded jar is:
+ * <pre>
+ * java -jar benchmarks.jar '\.MapBenchmark\.(get|replace|putRemove)$' -prof gc
+ * </pre>
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class MapBenchmark {
+
+  /**
+   * Number of keys looked up at once by {@link #getAll}.
+   */
+  private static final int BATCH = 64;
+
+  @Param({"NotThreadSafe", "ThreadSafe", "Striped", "HashMap", "ConcurrentHashMap"})
+  String impl;
+
+  @Param({"string", "long"})
+  String keyType;
+
+  /**
+   * Part of the slots of the map that is taken.
+   */
+  @Param({"0.25", "0.45"})
+  float loadFactor;
+
+  /**
+   * Number of slots in each of the two cuckoo tables.
+   */
+  @Param({"65536"})
+  int capacity;
+
+  Map<Object, Object> map;
+  Object[] present;
+  Object[] absent;
+  Object[][] batches;
+  Object[] values = new Object[BATCH];
+
+  private int presentIndex;
+  private int absentIndex;
+  private int batchIndex;
+
+  @Setup
+  public void setUp() {
+    int size = (int) (loadFactor * 2 * capacity);
+    Object[] keys = BenchmarkMaps.keys(keyType, 2 * size, 42);
+    present = Arrays.copyOfRange(keys, 0, size);
+    absent = Arrays.copyOfRange(keys, size, 2 * size);
+
+    batches = new Object[size / BATCH][];
+    for (int i = 0; i < batches.length; i++) {
+      batches[i] = Arrays.copyOfRange(present, i * BATCH, (i + 1) * BATCH);
+    }
+
+    map = BenchmarkMaps.create(impl, capacity);
+    for (Object key : present) {
+      map.put(key, key);
+    }
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include("\\." + MapBenchmark.class.getSimpleName() + "\\.(get|replace|putRemove)$")
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+
+  @Benchmark
+  public Object get() {
+    presentIndex = BenchmarkMaps.next(presentIndex, present.length);
+    return map.get(present[presentIndex]);
+  }
+
+  /**
+   * Looks up {@value #BATCH} present keys at once. The time is reported per key, so it compares
+   * with {@link #get}.
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public int getAll() {
+    batchIndex = BenchmarkMaps.next(batchIndex, batches.length);
+    return BenchmarkMaps.getAll(map, batches[batchIndex], values);
+  }
+
+  @Benchmark
+  public Object getMissing() {
+    absentIndex = BenchmarkMaps.next(absentIndex, absent.length);
+    return map.get(absent[absentIndex]);
+  }
+
+  @Benchmark
+  public Object replace() {
+    presentIndex = BenchmarkMaps.next(presentIndex, present.length);
+    absentIndex = BenchmarkMaps.next(absentIndex, absent.length);
+    return map.put(present[presentIndex], absent[absentIndex]);
+  }
+
+  @Benchmark
+  public Object putRemove() {
+    absentIndex = BenchmarkMaps.next(absentIndex, absent.length);
+    Object key = absent[absentIndex];
+    map.put(key, key);
+    return map.remove(key);
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.lpld.cuckoo;
+
+import java.util.AbstractMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Atomic operations of {@link java.util.concurrent.ConcurrentMap}, all built on a single
+ * {@link #update} of a key that each map implements natively: the striped map with the stripes
+ * of the key locked, the lock-free map by a CAS of the value. Each of them finds the key once,
+ * unlike the default methods, which look it up and then put or remove it.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+abstract class AbstractConcurrentCuckooMap<K, V> extends AbstractMap<K, V>
+    implements ConcurrentCuckooMap<K, V> {
+
+  /**
+   * Atomically replaces the value of the key with the one computed from it, puts the key if it's
+   * absent and the computed value isn't {@code null}, or removes it if it's present and the
+   * computed value is {@code null}.
+   *
+   * @return the new value of the key, or {@code null} if it's absent after the update
+   */
+  abstract V update(K key, Remapping<K, V> remapping);
+
+  @Override
+  public V putIfAbsent(K key, final V value) {
+    checkNotNull(key, value);
+    Remapping<K, V> remapping = new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return old != null ? old : value;
+      }
+    };
+    update(key, remapping);
+    return remapping.old;
+  }
+
+  @Override
+  public V replace(K key, final V value) {
+    checkNotNull(key, value);
+    Remapping<K, V> remapping = new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return old != null ? value : null;
+      }
+    };
+    update(key, remapping);
+    return remapping.old;
+  }
+
+  @Override
+  public boolean replace(K key, final V oldValue, final V newValue) {
+    checkNotNull(key, newValue);
+    if (oldValue == null) {
+      throw new NullPointerException();
+    }
+    Remapping<K, V> remapping = new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return oldValue.equals(old) ? newValue : old;
+      }
+    };
+    update(key, remapping);
+    return oldValue.equals(remapping.old);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public boolean remove(Object key, final Object value) {
+    if (key == null) {
+      throw new NullPointerException();
+    }
+    if (value == null) {
+      return false;
+    }
+    Remapping<K, V> remapping = new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return value.equals(old) ? null : old;
+      }
+    };
+    update((K) key, remapping);
+    return value.equals(remapping.old);
+  }
+
+  @Override
+  public V computeIfAbsent(K key, final Function<? super K, ? extends V> mappingFunction) {
+    checkNotNull(key, mappingFunction);
+    return update(key, new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return old != null ? old : mappingFunction.apply(key);
+      }
+    });
+  }
+
+  @Override
+  public V computeIfPresent(K key,
+                            final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    checkNotNull(key, remappingFunction);
+    return update(key, new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return old != null ? remappingFunction.apply(key, old) : null;
+      }
+    });
+  }
+
+  @Override
+  public V compute(K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    checkNotNull(key, remappingFunction);
+    return update(key, new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return remappingFunction.apply(key, old);
+      }
+    });
+  }
+
+  @Override
+  public V merge(K key, final V value,
+                 final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    checkNotNull(key, value);
+    if (remappingFunction == null) {
+      throw new NullPointerException();
+    }
+    return update(key, new Remapping<K, V>() {
+      @Override
+      V apply(K key, V old) {
+        return old != null ? remappingFunction.apply(old, value) : value;
+      }
+    });
+  }
+
+  /**
+   * @throws NullPointerException if the key or the value, or the function that computes it, is
+   *                              {@code null}
+   */
+  static void checkNotNull(Object key, Object value) {
+    if (key == null || value == null) {
+      throw new NullPointerException();
+    }
+  }
+
+  /**
+   * Computes the new value of a key from its current one, and remembers the current one.
+   */
+  abstract static class Remapping<K, V> {
+
+    /**
+     * Value that the last computation started from, {@code null} if the key was absent.
+     */
+    V old;
+
+    /**
+     * @return new value, {@code null} to remove the key, or {@code old} itself to leave the value
+     * as it is
+     */
+    abstract V apply(K key, V old);
+
+    final V remap(K key, V old) {
+      this.old = old;
+      return apply(key, old);
+    }
+  }
+}
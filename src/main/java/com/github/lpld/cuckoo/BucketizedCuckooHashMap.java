@@ -0,0 +1,551 @@
+package com.github.lpld.cuckoo;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Single-threaded set-associative cuckoo hash map.
+ *
+ * <p>Each hash selects a bucket of {@code slotsPerBucket} slots rather than a single slot, so a
+ * key can live in any slot of its two buckets. This lets the tables be filled up to 90% and more
+ * with short displacement paths. Keys and values are kept in flat arrays, next to a parallel array
+ * of 16-bit tags taken from the hash of each key. A lookup compares the tags of a bucket first,
+ * which with the default of 4 slots are 8 bytes in one cache line, and only calls
+ * {@code equals} on a key whose tag matches, so it rarely reads any key object but the one it
+ * looks for.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class BucketizedCuckooHashMap<K, V> extends AbstractMap<K, V> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final int DEFAULT_SLOTS_PER_BUCKET = 4;
+  private static final float DEFAULT_MAX_LOAD_FACTOR = 0.9f;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+  private static final int TABLES_COUNT = 2;
+
+  final int slotsPerBucket;
+
+  /**
+   * Number of buckets in each table.
+   */
+  int capacity;
+
+  int MAX_ROUTE = 5;
+  int MAX_SEARCH_NODES = 2048;
+
+  Object[][] keys;
+  Object[][] values;
+
+  /**
+   * Tag of the key in each slot, see {@link #tagFor}.
+   */
+  short[][] tags;
+
+  int size;
+  Hasher hasher;
+
+  /**
+   * Number of structural modifications, which make iterators fail.
+   */
+  int modCount;
+
+  private final float maxLoadFactor;
+
+  /**
+   * Largest number of buckets for which a table has at most {@value #MAXIMUM_CAPACITY} slots.
+   */
+  private final int maxCapacity;
+
+  private CuckooPath path;
+
+  public BucketizedCuckooHashMap(int capacity, int slotsPerBucket, float maxLoadFactor,
+                                 Hasher hasher) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    if (slotsPerBucket < 1) {
+      throw new IllegalArgumentException("Illegal number of slots per bucket: " + slotsPerBucket);
+    }
+    if (!(maxLoadFactor > 0 && maxLoadFactor <= 1)) {
+      throw new IllegalArgumentException("Illegal load factor: " + maxLoadFactor);
+    }
+
+    this.maxCapacity = Integer.highestOneBit(MAXIMUM_CAPACITY / slotsPerBucket);
+    if (maxCapacity == 0 || capacity > maxCapacity) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+
+    this.capacity = NotThreadSafeCuckooHashMap.tableSizeFor(capacity);
+    this.slotsPerBucket = slotsPerBucket;
+    this.maxLoadFactor = maxLoadFactor;
+    this.hasher = hasher;
+    this.MAX_SEARCH_NODES = Math.max(MAX_SEARCH_NODES, TABLES_COUNT * slotsPerBucket);
+    this.keys = new Object[TABLES_COUNT][this.capacity * slotsPerBucket];
+    this.values = new Object[TABLES_COUNT][this.capacity * slotsPerBucket];
+    this.tags = new short[TABLES_COUNT][this.capacity * slotsPerBucket];
+  }
+
+  public BucketizedCuckooHashMap(int capacity, int slotsPerBucket, float maxLoadFactor) {
+    this(capacity, slotsPerBucket, maxLoadFactor, new SeededHasher());
+  }
+
+  public BucketizedCuckooHashMap(int capacity, int slotsPerBucket) {
+    this(capacity, slotsPerBucket, DEFAULT_MAX_LOAD_FACTOR);
+  }
+
+  public BucketizedCuckooHashMap(int capacity) {
+    this(capacity, DEFAULT_SLOTS_PER_BUCKET);
+  }
+
+  public BucketizedCuckooHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(K key, V value) {
+    long h = hasher.hash(key);
+    short tag = tagFor(h);
+    int idx1 = indexFor(h, 0);
+    int pos = find(0, idx1, tag, key);
+    if (pos >= 0) {
+      return (V) replaceValue(0, pos, value);
+    }
+
+    int idx2 = indexFor(h, 1);
+    pos = find(1, idx2, tag, key);
+    if (pos >= 0) {
+      return (V) replaceValue(1, pos, value);
+    }
+
+    if (size + 1 > maxLoadFactor * TABLES_COUNT * capacity * slotsPerBucket) {
+      rehash(capacity << 1);
+    }
+
+    while (!insert(key, value)) {
+      rehash(capacity << 1);
+    }
+    size++;
+    modCount++;
+
+    return null;
+  }
+
+  private Object replaceValue(int table, int pos, Object value) {
+    Object old = values[table][pos];
+    values[table][pos] = value;
+    return old;
+  }
+
+  /**
+   * Puts a key that is not in the map yet.
+   *
+   * @return false if no free slot could be found and the tables have to be rehashed
+   */
+  private boolean insert(Object key, Object value) {
+    long h = hasher.hash(key);
+    short tag = tagFor(h);
+    int idx1 = indexFor(h, 0);
+    int pos = freeSlot(0, idx1);
+    if (pos >= 0) {
+      store(0, pos, key, value, tag);
+      return true;
+    }
+
+    int idx2 = indexFor(h, 1);
+    pos = freeSlot(1, idx2);
+    if (pos >= 0) {
+      store(1, pos, key, value, tag);
+      return true;
+    }
+
+    int root = relocate(idx1, idx2);
+    if (root < 0) {
+      return false;
+    }
+
+    store(path.table(root), path.position(root), key, value, tag);
+    return true;
+  }
+
+  private void store(int table, int pos, Object key, Object value, short tag) {
+    keys[table][pos] = key;
+    values[table][pos] = value;
+    tags[table][pos] = tag;
+  }
+
+  /**
+   * Searches breadth-first for the shortest cuckoo path starting from any slot of the two buckets
+   * of a key, and moves the entries along it.
+   *
+   * @return root node of the path, whose slot is now free, or -1 if no path was found within
+   * {@link #MAX_ROUTE} moves and {@link #MAX_SEARCH_NODES} examined slots
+   */
+  private int relocate(int bucket1, int bucket2) {
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+    }
+
+    path.clear();
+    for (int s = 0; s < slotsPerBucket; s++) {
+      path.add(0, bucket1 * slotsPerBucket + s, -1);
+      path.add(1, bucket2 * slotsPerBucket + s, -1);
+    }
+
+    while (path.hasNext()) {
+      int node = path.next();
+      if (path.depth(node) >= MAX_ROUTE) {
+        return -1;
+      }
+
+      int table = path.table(node);
+      Object key = keys[table][path.position(node)];
+
+      int destTable = 1 - table;
+      int destBucket = indexFor(hasher.hash(key), destTable);
+
+      int free = freeSlot(destTable, destBucket);
+      if (free >= 0) {
+        int child = path.add(destTable, free, node);
+        return child < 0 ? -1 : move(child);
+      }
+
+      for (int pos = destBucket * slotsPerBucket; pos < (destBucket + 1) * slotsPerBucket; pos++) {
+        if (!path.onBranch(node, destTable, pos) && path.add(destTable, pos, node) < 0) {
+          break;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves each entry on the branch one step down, starting from the free slot at {@code node}.
+   */
+  private int move(int node) {
+    int parent;
+    while ((parent = path.parent(node)) >= 0) {
+      int from = path.position(parent);
+      int fromTable = path.table(parent);
+      store(path.table(node), path.position(node),
+            keys[fromTable][from], values[fromTable][from], tags[fromTable][from]);
+      node = parent;
+    }
+    return node;
+  }
+
+  /**
+   * Sets the maximum number of entries that may be displaced to make room for a new one.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < TABLES_COUNT * slotsPerBucket) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  /**
+   * Rebuilds the tables with the given number of buckets and a new seed, growing them further if
+   * the entries still don't fit.
+   */
+  private void rehash(int newCapacity) {
+    Object[][] oldKeys = keys;
+    Object[][] oldValues = values;
+
+    while (true) {
+      if (newCapacity > maxCapacity) {
+        throw new IllegalStateException("Maximum capacity reached");
+      }
+
+      capacity = newCapacity;
+      keys = new Object[TABLES_COUNT][capacity * slotsPerBucket];
+      values = new Object[TABLES_COUNT][capacity * slotsPerBucket];
+      tags = new short[TABLES_COUNT][capacity * slotsPerBucket];
+      hasher = hasher.withSeed(ThreadLocalRandom.current().nextLong());
+
+      if (reinsert(oldKeys, oldValues)) {
+        return;
+      }
+
+      newCapacity = capacity << 1;
+    }
+  }
+
+  private boolean reinsert(Object[][] oldKeys, Object[][] oldValues) {
+    for (int t = 0; t < TABLES_COUNT; t++) {
+      for (int i = 0; i < oldKeys[t].length; i++) {
+        if (oldKeys[t][i] != null && !insert(oldKeys[t][i], oldValues[t][i])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(Object key) {
+    long h = hasher.hash(key);
+    short tag = tagFor(h);
+    int table = 0;
+    int pos = find(0, indexFor(h, 0), tag, key);
+    if (pos < 0) {
+      table = 1;
+      pos = find(1, indexFor(h, 1), tag, key);
+    }
+
+    if (pos < 0) {
+      return null;
+    }
+
+    Object old = values[table][pos];
+    store(table, pos, null, null, (short) 0);
+    size--;
+    modCount++;
+
+    return (V) old;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    long h = hasher.hash(key);
+    short tag = tagFor(h);
+    int pos = find(0, indexFor(h, 0), tag, key);
+    if (pos >= 0) {
+      return (V) values[0][pos];
+    }
+
+    pos = find(1, indexFor(h, 1), tag, key);
+    if (pos >= 0) {
+      return (V) values[1][pos];
+    }
+
+    return null;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    long h = hasher.hash(key);
+    short tag = tagFor(h);
+    return find(0, indexFor(h, 0), tag, key) >= 0 || find(1, indexFor(h, 1), tag, key) >= 0;
+  }
+
+  /**
+   * @return slot of the key in the bucket, or -1 if it's not there; only the keys whose tag
+   * matches are compared
+   */
+  private int find(int table, int bucket, short tag, Object key) {
+    short[] t = tags[table];
+    Object[] k = keys[table];
+    int start = bucket * slotsPerBucket;
+    for (int pos = start; pos < start + slotsPerBucket; pos++) {
+      if (t[pos] == tag && k[pos] != null && k[pos].equals(key)) {
+        return pos;
+      }
+    }
+    return -1;
+  }
+
+  private int freeSlot(int table, int bucket) {
+    Object[] k = keys[table];
+    int start = bucket * slotsPerBucket;
+    for (int pos = start; pos < start + slotsPerBucket; pos++) {
+      if (k[pos] == null) {
+        return pos;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void clear() {
+    for (int t = 0; t < TABLES_COUNT; t++) {
+      Arrays.fill(keys[t], null);
+      Arrays.fill(values[t], null);
+      Arrays.fill(tags[t], (short) 0);
+    }
+    size = 0;
+    modCount++;
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) o;
+      Object key = e.getKey();
+      if (!containsKey(key)) {
+        return false;
+      }
+      Object value = get(key);
+      return value == null ? e.getValue() == null : value.equals(e.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!contains(o)) {
+        return false;
+      }
+      BucketizedCuckooHashMap.this.remove(((Entry<?, ?>) o).getKey());
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      BucketizedCuckooHashMap.this.clear();
+    }
+  }
+
+  /**
+   * Returns the entries of the first table, then the ones of the second table. Fails if the map
+   * is modified other than through the iterator, since a new key can move entries around.
+   */
+  private final class EntryIterator implements Iterator<Entry<K, V>> {
+
+    private int expectedModCount = modCount;
+
+    private int table;
+    private int pos;
+
+    private int lastTable = -1;
+    private int lastPos;
+
+    EntryIterator() {
+      skipEmpty();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return table < TABLES_COUNT;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      lastTable = table;
+      lastPos = pos;
+      pos++;
+      skipEmpty();
+
+      return new SlotEntry(lastTable, lastPos);
+    }
+
+    @Override
+    public void remove() {
+      if (lastTable < 0) {
+        throw new IllegalStateException();
+      }
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+
+      store(lastTable, lastPos, null, null, (short) 0);
+      size--;
+      expectedModCount = ++modCount;
+      lastTable = -1;
+    }
+
+    private void skipEmpty() {
+      while (table < TABLES_COUNT) {
+        while (pos < keys[table].length) {
+          if (keys[table][pos] != null) {
+            return;
+          }
+          pos++;
+        }
+        table++;
+        pos = 0;
+      }
+    }
+  }
+
+  /**
+   * Entry that reads and writes its slot, as long as the map is not structurally modified.
+   */
+  private final class SlotEntry extends SimpleEntry<K, V> {
+
+    private final int table;
+    private final int pos;
+
+    @SuppressWarnings("unchecked")
+    SlotEntry(int table, int pos) {
+      super((K) keys[table][pos], (V) values[table][pos]);
+      this.table = table;
+      this.pos = pos;
+    }
+
+    @Override
+    public V setValue(V value) {
+      values[table][pos] = value;
+      return super.setValue(value);
+    }
+  }
+
+  /**
+   * @return bucket in the given table for a key with the given 64-bit hash
+   */
+  int indexFor(long hash, int table) {
+    return indexFor(table == 0 ? (int) hash : (int) (hash >>> 32));
+  }
+
+  int indexFor(int h) {
+    return h & (capacity - 1);
+  }
+
+  /**
+   * @return tag of a key with the given 64-bit hash, taken from a remix of the whole hash, since
+   * the keys of a bucket share the bits of the hash that select it
+   */
+  static short tagFor(long hash) {
+    return (short) SeededHasher.mix(hash + TABLES_COUNT);
+  }
+}
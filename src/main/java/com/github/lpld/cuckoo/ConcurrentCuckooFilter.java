@@ -0,0 +1,405 @@
+package com.github.lpld.cuckoo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cuckoo filter that can be shared between threads, with lock-free {@link #mightContain}.
+ *
+ * <p>The fingerprints are kept as in {@link CuckooFilter}, but each bucket takes a word of an
+ * {@link AtomicLongArray}: its {@value #SLOTS_PER_BUCKET} fingerprints of up to
+ * {@value #MAX_FINGERPRINT_BITS} bits in the low bits, and a version in the high
+ * {@value #VERSION_BITS} bits. Every update of a bucket is a single CAS of its word, which
+ * increments the version whether a fingerprint enters or leaves the bucket, like the timestamp of
+ * a slot of {@link ThreadSafeCuckooHashMap}.
+ *
+ * <p>A fingerprint that makes room for another one is moved between its two buckets by copying
+ * it to the new bucket first and removing it from the old one after that, so it is always in at
+ * least one of them. A lookup that reads the first bucket, then the second one, may still miss a
+ * fingerprint that moves into the first bucket after it was read and out of the second one before
+ * it is read; so the lookup reads the version of the first bucket again, and looks again if it has
+ * changed. If it hasn't, the first bucket held the same fingerprints all along, and the one looked
+ * up can only have been in the second bucket when that was read.
+ *
+ * <p>A move can't tell the copies of the same fingerprint apart, and the copies of a fingerprint
+ * in one of its buckets all have the same other bucket. So a move removes whichever copy it
+ * finds, from the old bucket or, if a concurrent {@link #remove} has taken the one it copied, from
+ * the new one; the number of copies in the two buckets never drops below the number of times the
+ * fingerprint has been added and not removed.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class ConcurrentCuckooFilter<K> {
+
+  private static final int SLOTS_PER_BUCKET = CuckooFilter.SLOTS_PER_BUCKET;
+
+  private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+  private static final int MAX_FINGERPRINT_BITS = 12;
+
+  private static final int VERSION_BITS = 16;
+  private static final int VERSION_SHIFT = Long.SIZE - VERSION_BITS;
+  private static final long VERSION_UNIT = 1L << VERSION_SHIFT;
+
+  /**
+   * Number of times that {@link #add} looks for a cuckoo path before it gives up, when the paths
+   * it finds are changed by concurrent updates before the fingerprints are moved along them.
+   */
+  private static final int MAX_ATTEMPTS = 16;
+
+  /**
+   * Search tree reused by all relocations made by a thread.
+   */
+  private static final ThreadLocal<CuckooPath> PATH = new ThreadLocal<CuckooPath>();
+
+  /**
+   * Number of buckets.
+   */
+  final int capacity;
+
+  final int fingerprintBits;
+  private final long fingerprintMask;
+
+  int MAX_ROUTE = 5;
+  int MAX_SEARCH_NODES = 2048;
+
+  final AtomicLongArray buckets;
+  private final Hasher hasher;
+  private final LongAdder count = new LongAdder();
+
+  /**
+   * @param expectedSize      number of keys that the filter must be able to hold
+   * @param falsePositiveRate highest acceptable probability that {@link #mightContain} returns
+   *                          {@code true} for a key that hasn't been added; fingerprints are at
+   *                          most {@value #MAX_FINGERPRINT_BITS} bits long, so it can't be lower
+   *                          than {@code 2 * 4 / 2^12}
+   */
+  public ConcurrentCuckooFilter(int expectedSize, double falsePositiveRate, Hasher hasher) {
+    this.capacity = CuckooFilter.capacityFor(expectedSize, MAXIMUM_CAPACITY);
+    this.fingerprintBits = CuckooFilter.fingerprintBitsFor(falsePositiveRate, MAX_FINGERPRINT_BITS);
+    this.fingerprintMask = (1L << fingerprintBits) - 1;
+    this.hasher = hasher;
+    this.buckets = new AtomicLongArray(capacity);
+  }
+
+  public ConcurrentCuckooFilter(int expectedSize, double falsePositiveRate) {
+    this(expectedSize, falsePositiveRate, new SeededHasher());
+  }
+
+  public ConcurrentCuckooFilter(int expectedSize) {
+    this(expectedSize, DEFAULT_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * Adds the fingerprint of the key.
+   *
+   * @return false if there is no room for it, in which case the filter is left as it was
+   */
+  public boolean add(K key) {
+    long h = hasher.hash(key);
+    long fp = fingerprint(h);
+    int bucket1 = bucketFor(h);
+    int bucket2 = otherBucket(bucket1, fp);
+
+    for (int attempt = 0; ; attempt++) {
+      if (store(bucket1, fp) || store(bucket2, fp)) {
+        count.increment();
+        return true;
+      }
+      if (attempt == MAX_ATTEMPTS || !relocate(bucket1, bucket2)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return false if the key has certainly not been added, true if it has been added or if
+   * another key has the same fingerprint and one of the same buckets
+   */
+  public boolean mightContain(Object key) {
+    long h = hasher.hash(key);
+    long fp = fingerprint(h);
+    int bucket1 = bucketFor(h);
+    int bucket2 = otherBucket(bucket1, fp);
+    return mightContain(fp, bucket1, bucket2, buckets.get(bucket1));
+  }
+
+  /**
+   * Looks up a fingerprint, starting from the word of its first bucket that has just been read.
+   */
+  boolean mightContain(long fp, int bucket1, int bucket2, long word) {
+    while (true) {
+      if (slotOf(word, fp) >= 0 || slotOf(buckets.get(bucket2), fp) >= 0) {
+        return true;
+      }
+      long again = buckets.get(bucket1);
+      if (version(again) == version(word)) {
+        return false;
+      }
+      word = again;
+    }
+  }
+
+  /**
+   * Removes one copy of the fingerprint of a key that has been added.
+   *
+   * @return false if the fingerprint wasn't found, so the key can't have been added
+   */
+  public boolean remove(Object key) {
+    long h = hasher.hash(key);
+    long fp = fingerprint(h);
+    int bucket1 = bucketFor(h);
+    int bucket2 = otherBucket(bucket1, fp);
+
+    while (true) {
+      long word = buckets.get(bucket1);
+      int slot = slotOf(word, fp);
+      if (slot >= 0) {
+        if (buckets.compareAndSet(bucket1, word, without(word, slot))) {
+          count.decrement();
+          return true;
+        }
+        continue;
+      }
+
+      if (removeFrom(bucket2, fp)) {
+        count.decrement();
+        return true;
+      }
+      // as in mightContain
+      if (version(buckets.get(bucket1)) == version(word)) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return number of fingerprints in the filter, which may miss concurrent updates
+   */
+  public long size() {
+    return count.sum();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * @return part of the slots that are taken
+   */
+  public double loadFactor() {
+    return (double) size() / ((long) capacity * SLOTS_PER_BUCKET);
+  }
+
+  /**
+   * Removes all fingerprints, one bucket after another; fingerprints added concurrently may stay.
+   */
+  public void clear() {
+    for (int b = 0; b < capacity; b++) {
+      long word;
+      do {
+        word = buckets.get(b);
+      } while (!buckets.compareAndSet(b, word, (word & ~(VERSION_UNIT - 1)) + VERSION_UNIT));
+      count.add(-taken(word));
+    }
+  }
+
+  /**
+   * Puts a fingerprint into a free slot of the bucket.
+   *
+   * @return false if the bucket is full
+   */
+  boolean store(int bucket, long fp) {
+    while (true) {
+      long word = buckets.get(bucket);
+      int slot = slotOf(word, 0);
+      if (slot < 0) {
+        return false;
+      }
+      long stored = (word | fp << slot * fingerprintBits) + VERSION_UNIT;
+      if (buckets.compareAndSet(bucket, word, stored)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Removes a copy of a fingerprint from the bucket.
+   *
+   * @return false if there is none
+   */
+  boolean removeFrom(int bucket, long fp) {
+    while (true) {
+      long word = buckets.get(bucket);
+      int slot = slotOf(word, fp);
+      if (slot < 0) {
+        return false;
+      }
+      if (buckets.compareAndSet(bucket, word, without(word, slot))) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Searches breadth-first for a cuckoo path starting from any slot of the two buckets of a
+   * fingerprint, as {@link CuckooFilter} does, and moves the fingerprints along it.
+   *
+   * @return false if no path was found, true if one was found, even if concurrent updates
+   * changed it before the fingerprints could be moved along all of it
+   */
+  private boolean relocate(int bucket1, int bucket2) {
+    CuckooPath path = PATH.get();
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+      PATH.set(path);
+    }
+
+    path.clear();
+    for (int s = 0; s < SLOTS_PER_BUCKET; s++) {
+      path.add(0, bucket1 * SLOTS_PER_BUCKET + s, -1);
+      if (bucket2 != bucket1) {
+        path.add(0, bucket2 * SLOTS_PER_BUCKET + s, -1);
+      }
+    }
+
+    while (path.hasNext()) {
+      int node = path.next();
+      if (path.depth(node) >= MAX_ROUTE) {
+        return false;
+      }
+
+      long fp = fingerprintAt(path.position(node));
+      if (fp == 0) {
+        // a slot has been freed in the meantime
+        return true;
+      }
+
+      int destBucket = otherBucket(path.position(node) / SLOTS_PER_BUCKET, fp);
+      int free = slotOf(buckets.get(destBucket), 0);
+      if (free >= 0) {
+        int child = path.add(0, destBucket * SLOTS_PER_BUCKET + free, node);
+        if (child >= 0) {
+          move(path, child);
+        }
+        return child >= 0;
+      }
+
+      int start = destBucket * SLOTS_PER_BUCKET;
+      for (int pos = start; pos < start + SLOTS_PER_BUCKET; pos++) {
+        if (!path.onBranch(node, 0, pos) && path.add(0, pos, node) < 0) {
+          break;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Moves each fingerprint on the branch one step down, starting from the free slot at
+   * {@code node}, and stops at the first step that concurrent updates have made impossible.
+   */
+  private void move(CuckooPath path, int node) {
+    int parent;
+    while ((parent = path.parent(node)) >= 0) {
+      int from = path.position(parent) / SLOTS_PER_BUCKET;
+      int to = path.position(node) / SLOTS_PER_BUCKET;
+
+      long fp = fingerprintAt(path.position(parent));
+      if (fp == 0 || otherBucket(from, fp) != to || !store(to, fp)) {
+        return;
+      }
+
+      // unless the filter is being cleared, there is at least one copy besides the one just
+      // stored, but it may be moving between the two buckets as well; a copy left behind only
+      // takes a slot, it can't make a lookup fail
+      for (int i = 0; i < MAX_ATTEMPTS && !removeFrom(from, fp) && !removeFrom(to, fp); i++) {
+        Thread.yield();
+      }
+
+      node = parent;
+    }
+  }
+
+  /**
+   * Sets the maximum number of fingerprints that may be displaced to make room for a new one.
+   * Must be called before the filter is shared between threads.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path. Must be called
+   * before the filter is shared between threads.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < 2 * SLOTS_PER_BUCKET) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  private long fingerprintAt(int slot) {
+    long word = buckets.get(slot / SLOTS_PER_BUCKET);
+    return word >>> slot % SLOTS_PER_BUCKET * fingerprintBits & fingerprintMask;
+  }
+
+  /**
+   * @return slot of the bucket word that holds the fingerprint, or -1
+   */
+  private int slotOf(long word, long fp) {
+    for (int s = 0; s < SLOTS_PER_BUCKET; s++) {
+      if ((word >>> s * fingerprintBits & fingerprintMask) == fp) {
+        return s;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the bucket word with the slot freed and the version incremented
+   */
+  private long without(long word, int slot) {
+    return (word & ~(fingerprintMask << slot * fingerprintBits)) + VERSION_UNIT;
+  }
+
+  /**
+   * @return number of slots of the bucket word that are taken
+   */
+  private int taken(long word) {
+    int taken = 0;
+    for (int s = 0; s < SLOTS_PER_BUCKET; s++) {
+      if ((word >>> s * fingerprintBits & fingerprintMask) != 0) {
+        taken++;
+      }
+    }
+    return taken;
+  }
+
+  private static long version(long word) {
+    return word >>> VERSION_SHIFT;
+  }
+
+  int bucketFor(long h) {
+    return Hasher.tableHash(h, 0) & (capacity - 1);
+  }
+
+  /**
+   * @return fingerprint taken from the half of the hash that doesn't select the bucket; never
+   * {@code 0}, which marks a free slot
+   */
+  long fingerprint(long h) {
+    long fp = Hasher.tableHash(h, 1) & fingerprintMask;
+    return fp == 0 ? 1 : fp;
+  }
+
+  int otherBucket(int bucket, long fp) {
+    return bucket ^ (int) SeededHasher.mix(fp) & (capacity - 1);
+  }
+}
@@ -0,0 +1,43 @@
+package com.github.lpld.cuckoo;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cuckoo hash map that can be shared between threads. There are two implementations, which suit
+ * different workloads:
+ * <ul>
+ *   <li>{@link ThreadSafeCuckooHashMap} is lock-free. Nobody ever waits for a thread that has
+ *   been preempted in the middle of an update, but every slot that an update touches costs a CAS,
+ *   and a lookup has to read the slots of a key again whenever an entry was moved between them.
+ *   </li>
+ *   <li>{@link StripedCuckooHashMap} locks a few stripes of buckets for each update and reads
+ *   without locks, validating what it has read against the versions of the stripes. Updates are
+ *   cheaper as long as writers rarely collide on a stripe, and lookups scan buckets of several
+ *   slots that are laid out next to each other.</li>
+ * </ul>
+ *
+ * <p>Iterators of both are weakly consistent: they never throw
+ * {@link java.util.ConcurrentModificationException}, and return every entry that is in the map
+ * for the whole iteration exactly once.
+ *
+ * <p>The operations of {@link ConcurrentMap} are atomic, and find the key only once. The striped
+ * map applies the functions of {@code compute} and {@code merge} once, with the stripes of the
+ * key locked, so they must not update the map themselves. The lock-free map applies them again
+ * whenever the value has changed before the result could be put, so they should have no side
+ * effects.
+ *
+ * <p>As in {@link java.util.concurrent.ConcurrentHashMap}, {@code get} returns {@code null} only
+ * for an absent key, so every method that would put a {@code null} key or value throws
+ * {@link NullPointerException} instead. A function of {@code compute} or {@code merge} that
+ * returns {@code null} removes the key.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public interface ConcurrentCuckooMap<K, V> extends ConcurrentMap<K, V> {
+
+  /**
+   * @return number of entries, which may exceed {@link Integer#MAX_VALUE}
+   */
+  long mappingCount();
+}
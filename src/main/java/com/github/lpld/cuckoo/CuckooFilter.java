@@ -0,0 +1,329 @@
+package com.github.lpld.cuckoo;
+
+import java.util.Arrays;
+
+/**
+ * Single-threaded cuckoo filter: a set that answers whether a key might have been added to it,
+ * with a configurable rate of false positives and no false negatives.
+ *
+ * <p>Only a short fingerprint of each key is kept, in a single table of buckets of
+ * {@value #SLOTS_PER_BUCKET} slots. The fingerprints are packed into an array of longs with no
+ * padding, so a filter takes a few bytes per key instead of the two references and the entry of
+ * a map. The keys themselves are not known to the filter, so a fingerprint that has to make room
+ * for another one can't be rehashed: the other bucket of a fingerprint is derived from the
+ * fingerprint and the bucket it is in (partial-key cuckoo hashing), by xor-ing the bucket with a
+ * hash of the fingerprint. The displacements are found by the same breadth-first search of a
+ * cuckoo path as in the maps.
+ *
+ * <p>For the same reason the filter can't grow: it is sized for an expected number of keys, and
+ * {@link #add} fails once no cuckoo path can be found for a new fingerprint, which typically
+ * happens at a load of more than 95%.
+ *
+ * <p>A key can be removed, but only if it has been added: removing a key that hasn't been added
+ * may remove the fingerprint of another key that has the same one. Adding a key twice stores its
+ * fingerprint twice, so that each {@link #add} can be undone by a {@link #remove}.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class CuckooFilter<K> {
+
+  static final int SLOTS_PER_BUCKET = 4;
+
+  private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+  private static final double EXPECTED_LOAD_FACTOR = 0.95;
+  private static final int MAXIMUM_CAPACITY = 1 << 28;
+  private static final int MAX_FINGERPRINT_BITS = 32;
+
+  /**
+   * Number of buckets.
+   */
+  final int capacity;
+
+  final int fingerprintBits;
+  private final long fingerprintMask;
+
+  int MAX_ROUTE = 5;
+  int MAX_SEARCH_NODES = 2048;
+
+  /**
+   * Fingerprints of all slots, {@link #fingerprintBits} bits each, {@code 0} in a free slot.
+   */
+  private final long[] bits;
+
+  private final Hasher hasher;
+  private int size;
+
+  private CuckooPath path;
+
+  /**
+   * @param expectedSize      number of keys that the filter must be able to hold
+   * @param falsePositiveRate highest acceptable probability that {@link #mightContain} returns
+   *                          {@code true} for a key that hasn't been added
+   */
+  public CuckooFilter(int expectedSize, double falsePositiveRate, Hasher hasher) {
+    this.capacity = capacityFor(expectedSize, MAXIMUM_CAPACITY);
+    this.fingerprintBits = fingerprintBitsFor(falsePositiveRate, MAX_FINGERPRINT_BITS);
+    this.fingerprintMask = (1L << fingerprintBits) - 1;
+    this.hasher = hasher;
+    this.bits = new long[(int) (((long) capacity * SLOTS_PER_BUCKET * fingerprintBits + 63) >>> 6)];
+  }
+
+  public CuckooFilter(int expectedSize, double falsePositiveRate) {
+    this(expectedSize, falsePositiveRate, new SeededHasher());
+  }
+
+  public CuckooFilter(int expectedSize) {
+    this(expectedSize, DEFAULT_FALSE_POSITIVE_RATE);
+  }
+
+  /**
+   * Adds the fingerprint of the key.
+   *
+   * @return false if there is no room for it, in which case the filter is left as it was
+   */
+  public boolean add(K key) {
+    long h = hasher.hash(key);
+    long fp = fingerprint(h);
+    int bucket1 = bucketFor(h);
+    int bucket2 = otherBucket(bucket1, fp);
+
+    int slot = freeSlot(bucket1);
+    if (slot < 0) {
+      slot = freeSlot(bucket2);
+    }
+    if (slot < 0) {
+      int root = relocate(bucket1, bucket2);
+      if (root < 0) {
+        return false;
+      }
+      slot = path.position(root);
+    }
+
+    setFingerprint(slot, fp);
+    size++;
+    return true;
+  }
+
+  /**
+   * @return false if the key has certainly not been added, true if it has been added or if
+   * another key has the same fingerprint and one of the same buckets
+   */
+  public boolean mightContain(Object key) {
+    long h = hasher.hash(key);
+    long fp = fingerprint(h);
+    int bucket1 = bucketFor(h);
+    return find(bucket1, fp) >= 0 || find(otherBucket(bucket1, fp), fp) >= 0;
+  }
+
+  /**
+   * Removes one copy of the fingerprint of a key that has been added.
+   *
+   * @return false if the fingerprint wasn't found, so the key can't have been added
+   */
+  public boolean remove(Object key) {
+    long h = hasher.hash(key);
+    long fp = fingerprint(h);
+    int bucket1 = bucketFor(h);
+    int slot = find(bucket1, fp);
+    if (slot < 0) {
+      slot = find(otherBucket(bucket1, fp), fp);
+    }
+    if (slot < 0) {
+      return false;
+    }
+
+    setFingerprint(slot, 0);
+    size--;
+    return true;
+  }
+
+  /**
+   * @return number of fingerprints in the filter
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return part of the slots that are taken
+   */
+  public double loadFactor() {
+    return (double) size / ((long) capacity * SLOTS_PER_BUCKET);
+  }
+
+  public void clear() {
+    Arrays.fill(bits, 0);
+    size = 0;
+  }
+
+  /**
+   * @return number of buckets, a power of two, in which the expected number of keys take up to
+   * {@value #EXPECTED_LOAD_FACTOR} of the slots
+   */
+  static int capacityFor(int expectedSize, int maximumCapacity) {
+    if (expectedSize < 0) {
+      throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+    }
+    double buckets = Math.ceil(expectedSize / (EXPECTED_LOAD_FACTOR * SLOTS_PER_BUCKET));
+    if (buckets > maximumCapacity) {
+      throw new IllegalArgumentException("Illegal expected size: " + expectedSize);
+    }
+    return NotThreadSafeCuckooHashMap.tableSizeFor((int) buckets);
+  }
+
+  /**
+   * @return length of the fingerprints that gives the false positive rate
+   */
+  static int fingerprintBitsFor(double falsePositiveRate, int maxBits) {
+    // a lookup compares the fingerprint with the 2 * SLOTS_PER_BUCKET ones in the key's buckets
+    double bits = Math.ceil(Math.log(2 * SLOTS_PER_BUCKET / falsePositiveRate) / Math.log(2));
+    if (!(falsePositiveRate > 0 && falsePositiveRate < 1) || bits > maxBits) {
+      throw new IllegalArgumentException("Illegal false positive rate: " + falsePositiveRate);
+    }
+    return (int) bits;
+  }
+
+  /**
+   * Searches breadth-first for the shortest cuckoo path starting from any slot of the two buckets
+   * of a fingerprint, and moves the fingerprints along it.
+   *
+   * @return root node of the path, whose slot is now free, or -1 if no path was found within
+   * {@link #MAX_ROUTE} moves and {@link #MAX_SEARCH_NODES} examined slots
+   */
+  private int relocate(int bucket1, int bucket2) {
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+    }
+
+    path.clear();
+    for (int s = 0; s < SLOTS_PER_BUCKET; s++) {
+      path.add(0, bucket1 * SLOTS_PER_BUCKET + s, -1);
+      if (bucket2 != bucket1) {
+        path.add(0, bucket2 * SLOTS_PER_BUCKET + s, -1);
+      }
+    }
+
+    while (path.hasNext()) {
+      int node = path.next();
+      if (path.depth(node) >= MAX_ROUTE) {
+        return -1;
+      }
+
+      int slot = path.position(node);
+      int destBucket = otherBucket(slot / SLOTS_PER_BUCKET, fingerprintAt(slot));
+
+      int free = freeSlot(destBucket);
+      if (free >= 0) {
+        int child = path.add(0, free, node);
+        return child < 0 ? -1 : move(child);
+      }
+
+      int start = destBucket * SLOTS_PER_BUCKET;
+      for (int pos = start; pos < start + SLOTS_PER_BUCKET; pos++) {
+        if (!path.onBranch(node, 0, pos) && path.add(0, pos, node) < 0) {
+          break;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves each fingerprint on the branch one step down, starting from the free slot at
+   * {@code node}.
+   */
+  private int move(int node) {
+    int parent;
+    while ((parent = path.parent(node)) >= 0) {
+      setFingerprint(path.position(node), fingerprintAt(path.position(parent)));
+      node = parent;
+    }
+    return node;
+  }
+
+  /**
+   * Sets the maximum number of fingerprints that may be displaced to make room for a new one.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < 2 * SLOTS_PER_BUCKET) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  private int find(int bucket, long fp) {
+    int start = bucket * SLOTS_PER_BUCKET;
+    for (int slot = start; slot < start + SLOTS_PER_BUCKET; slot++) {
+      if (fingerprintAt(slot) == fp) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private int freeSlot(int bucket) {
+    return find(bucket, 0);
+  }
+
+  private int bucketFor(long h) {
+    return Hasher.tableHash(h, 0) & (capacity - 1);
+  }
+
+  /**
+   * @return fingerprint taken from the half of the hash that doesn't select the bucket; never
+   * {@code 0}, which marks a free slot
+   */
+  private long fingerprint(long h) {
+    long fp = Hasher.tableHash(h, 1) & fingerprintMask;
+    return fp == 0 ? 1 : fp;
+  }
+
+  /**
+   * @return the other bucket of a fingerprint that is in the given one; applied twice, it gives
+   * back the first bucket
+   */
+  private int otherBucket(int bucket, long fp) {
+    return bucket ^ (int) SeededHasher.mix(fp) & (capacity - 1);
+  }
+
+  private long fingerprintAt(int slot) {
+    long bit = (long) slot * fingerprintBits;
+    int word = (int) (bit >>> 6);
+    int shift = (int) bit & 63;
+
+    long fp = bits[word] >>> shift;
+    if (shift + fingerprintBits > 64) {
+      fp |= bits[word + 1] << 64 - shift;
+    }
+    return fp & fingerprintMask;
+  }
+
+  private void setFingerprint(int slot, long fp) {
+    long bit = (long) slot * fingerprintBits;
+    int word = (int) (bit >>> 6);
+    int shift = (int) bit & 63;
+
+    bits[word] = bits[word] & ~(fingerprintMask << shift) | fp << shift;
+    if (shift + fingerprintBits > 64) {
+      // the rest of the fingerprint goes to the low bits of the next word
+      int written = 64 - shift;
+      bits[word + 1] = bits[word + 1] & ~(fingerprintMask >>> written) | fp >>> written;
+    }
+  }
+}
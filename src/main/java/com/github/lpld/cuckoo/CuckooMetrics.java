@@ -0,0 +1,132 @@
+package com.github.lpld.cuckoo;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what a {@link ThreadSafeCuckooHashMap} does internally, to find out why its
+ * updates get slow or fail. Metrics are passed to the constructor of the map; a map created
+ * without them doesn't count anything and pays nothing for it.
+ *
+ * <p>Every counter is a {@link LongAdder}, so that threads updating the map don't contend on
+ * them. The metrics can be registered with an MBean server to be read over JMX:
+ * <pre>
+ *   CuckooMetrics metrics = new CuckooMetrics();
+ *   Map&lt;K, V&gt; map = new ThreadSafeCuckooHashMap&lt;K, V&gt;(16, new SeededHasher(), false, metrics);
+ *   ManagementFactory.getPlatformMBeanServer()
+ *       .registerMBean(metrics, new ObjectName("com.github.lpld.cuckoo:type=CuckooMap,name=users"));
+ * </pre>
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class CuckooMetrics implements CuckooMetricsMXBean {
+
+  /**
+   * Paths of this length and longer are counted together.
+   */
+  public static final int MAX_TRACKED_PATH_LENGTH = 16;
+
+  private final LongAdder[] pathLengths = new LongAdder[MAX_TRACKED_PATH_LENGTH + 1];
+
+  final LongAdder stashedEntries = new LongAdder();
+  final LongAdder putRetries = new LongAdder();
+  final LongAdder removeRetries = new LongAdder();
+  final LongAdder helpRelocates = new LongAdder();
+  final LongAdder lookupRetries = new LongAdder();
+  final LongAdder failedRelocations = new LongAdder();
+  final LongAdder resizes = new LongAdder();
+  final LongAdder hits = new LongAdder();
+  final LongAdder misses = new LongAdder();
+  final LongAdder evictions = new LongAdder();
+  final LongAdder expirations = new LongAdder();
+  final LongAdder slowLookups = new LongAdder();
+
+  public CuckooMetrics() {
+    for (int i = 0; i < pathLengths.length; i++) {
+      pathLengths[i] = new LongAdder();
+    }
+  }
+
+  void recordPathLength(int length) {
+    pathLengths[Math.min(length, MAX_TRACKED_PATH_LENGTH)].increment();
+  }
+
+  /**
+   * @return current values of all counters
+   */
+  public CuckooStats snapshot() {
+    return new CuckooStats(getPathLengths(), getStashedEntries(), getPutRetries(),
+                           getRemoveRetries(), getHelpRelocates(), getLookupRetries(),
+                           getFailedRelocations(), getResizes(), getHits(), getMisses(),
+                           getEvictions(), getExpirations(), getSlowLookups());
+  }
+
+  @Override
+  public long[] getPathLengths() {
+    long[] result = new long[pathLengths.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = pathLengths[i].sum();
+    }
+    return result;
+  }
+
+  @Override
+  public long getStashedEntries() {
+    return stashedEntries.sum();
+  }
+
+  @Override
+  public long getPutRetries() {
+    return putRetries.sum();
+  }
+
+  @Override
+  public long getRemoveRetries() {
+    return removeRetries.sum();
+  }
+
+  @Override
+  public long getHelpRelocates() {
+    return helpRelocates.sum();
+  }
+
+  @Override
+  public long getLookupRetries() {
+    return lookupRetries.sum();
+  }
+
+  @Override
+  public long getFailedRelocations() {
+    return failedRelocations.sum();
+  }
+
+  @Override
+  public long getResizes() {
+    return resizes.sum();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.sum();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  @Override
+  public long getExpirations() {
+    return expirations.sum();
+  }
+
+  @Override
+  public long getSlowLookups() {
+    return slowLookups.sum();
+  }
+}
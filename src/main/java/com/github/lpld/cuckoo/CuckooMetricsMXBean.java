@@ -0,0 +1,83 @@
+package com.github.lpld.cuckoo;
+
+/**
+ * Management interface of {@link CuckooMetrics}. All values are counted since the metrics were
+ * created.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public interface CuckooMetricsMXBean {
+
+  /**
+   * @return number of new keys put with a cuckoo path of each length: element {@code i} counts
+   * the keys for which {@code i} entries were displaced, the last element counts all longer paths
+   */
+  long[] getPathLengths();
+
+  /**
+   * @return number of new keys put into the stash because no cuckoo path was found for them
+   */
+  long getStashedEntries();
+
+  /**
+   * @return number of times a put had to start over because a concurrent update changed a slot
+   */
+  long getPutRetries();
+
+  /**
+   * @return number of times a remove had to start over because a concurrent update changed a
+   * slot
+   */
+  long getRemoveRetries();
+
+  /**
+   * @return number of attempts to move an entry to its other slot, including the ones that help
+   * another thread to finish its move
+   */
+  long getHelpRelocates();
+
+  /**
+   * @return number of times a lookup read both slots again because an entry was moved while it
+   * was reading them
+   */
+  long getLookupRetries();
+
+  /**
+   * @return number of times no cuckoo path was found for a new key, so that it had to be stashed,
+   * or the map had to grow or, if it is a cache, to evict an entry
+   */
+  long getFailedRelocations();
+
+  /**
+   * @return number of times the map started to grow
+   */
+  long getResizes();
+
+  /**
+   * @return number of lookups that found the key
+   */
+  long getHits();
+
+  /**
+   * @return number of lookups that didn't find the key
+   */
+  long getMisses();
+
+  /**
+   * @return number of entries that a cache evicted to make room for new keys
+   */
+  long getEvictions();
+
+  /**
+   * @return number of entries removed because their time to live had passed, whether a lookup,
+   * an update or a sweep found them
+   */
+  long getExpirations();
+
+  /**
+   * @return number of lookups that were retried so many times that they pinned their slots, so
+   * that no relocation could start moving entries in or out of them until they were done
+   */
+  long getSlowLookups();
+}
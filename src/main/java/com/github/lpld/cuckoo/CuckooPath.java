@@ -0,0 +1,98 @@
+package com.github.lpld.cuckoo;
+
+/**
+ * Breadth-first search tree used to find the shortest cuckoo path, as in libcuckoo and MemC3.
+ *
+ * <p>Nodes are slots, identified by a table and a position in it. The children of a node are the
+ * slots that the entry occupying it could be moved to. Once a free slot is reached, the entries
+ * are moved one step each along the branch, starting from the free slot and going back to the
+ * root, so that the root slot is freed with the fewest possible moves.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+final class CuckooPath {
+
+  private final int[] tables;
+  private final int[] positions;
+  private final int[] parents;
+  private final int[] depths;
+
+  private int size;
+  private int head;
+
+  CuckooPath(int maxNodes) {
+    this.tables = new int[maxNodes];
+    this.positions = new int[maxNodes];
+    this.parents = new int[maxNodes];
+    this.depths = new int[maxNodes];
+  }
+
+  void clear() {
+    size = 0;
+    head = 0;
+  }
+
+  /**
+   * @return the new node, or -1 if the search has already reached its maximum breadth
+   */
+  int add(int table, int position, int parent) {
+    if (size == tables.length) {
+      return -1;
+    }
+
+    tables[size] = table;
+    positions[size] = position;
+    parents[size] = parent;
+    depths[size] = parent < 0 ? 0 : depths[parent] + 1;
+
+    return size++;
+  }
+
+  boolean hasNext() {
+    return head < size;
+  }
+
+  int next() {
+    return head++;
+  }
+
+  int table(int node) {
+    return tables[node];
+  }
+
+  int position(int node) {
+    return positions[node];
+  }
+
+  /**
+   * @return parent of the node, or -1 for a root
+   */
+  int parent(int node) {
+    return parents[node];
+  }
+
+  /**
+   * @return number of entries that have to be moved to free the root slot of the node's branch
+   */
+  int depth(int node) {
+    return depths[node];
+  }
+
+  /**
+   * Checks whether a slot is already on the branch leading to the node. Such a slot must not be
+   * added again: the same entry would be moved twice.
+   */
+  boolean onBranch(int node, int table, int position) {
+    for (int n = node; n >= 0; n = parents[n]) {
+      if (tables[n] == table && positions[n] == position) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  int maxNodes() {
+    return tables.length;
+  }
+}
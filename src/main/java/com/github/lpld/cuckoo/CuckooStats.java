@@ -0,0 +1,148 @@
+package com.github.lpld.cuckoo;
+
+import java.util.Arrays;
+
+/**
+ * Values of {@link CuckooMetrics} at some point in time. See {@link CuckooMetricsMXBean} for the
+ * meaning of each of them.
+ *
+ * <p>The counters are read one by one while the map may be in use, so a snapshot is not atomic:
+ * two counters may reflect slightly different moments.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public final class CuckooStats {
+
+  private final long[] pathLengths;
+  private final long stashedEntries;
+  private final long putRetries;
+  private final long removeRetries;
+  private final long helpRelocates;
+  private final long lookupRetries;
+  private final long failedRelocations;
+  private final long resizes;
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long expirations;
+  private final long slowLookups;
+
+  CuckooStats(long[] pathLengths, long stashedEntries, long putRetries, long removeRetries,
+              long helpRelocates, long lookupRetries, long failedRelocations, long resizes,
+              long hits, long misses, long evictions, long expirations, long slowLookups) {
+    this.pathLengths = pathLengths;
+    this.stashedEntries = stashedEntries;
+    this.putRetries = putRetries;
+    this.removeRetries = removeRetries;
+    this.helpRelocates = helpRelocates;
+    this.lookupRetries = lookupRetries;
+    this.failedRelocations = failedRelocations;
+    this.resizes = resizes;
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.expirations = expirations;
+    this.slowLookups = slowLookups;
+  }
+
+  public long[] getPathLengths() {
+    return pathLengths.clone();
+  }
+
+  /**
+   * @return number of new keys put with a cuckoo path of the given length, or of any length
+   * starting from {@link CuckooMetrics#MAX_TRACKED_PATH_LENGTH}
+   */
+  public long getPathLengthCount(int length) {
+    return pathLengths[Math.min(length, pathLengths.length - 1)];
+  }
+
+  /**
+   * @return average number of entries displaced per new key, counting longer paths as
+   * {@link CuckooMetrics#MAX_TRACKED_PATH_LENGTH}
+   */
+  public double getAveragePathLength() {
+    long keys = 0;
+    long moves = 0;
+    for (int i = 0; i < pathLengths.length; i++) {
+      keys += pathLengths[i];
+      moves += i * pathLengths[i];
+    }
+    return keys == 0 ? 0 : (double) moves / keys;
+  }
+
+  public long getStashedEntries() {
+    return stashedEntries;
+  }
+
+  public long getPutRetries() {
+    return putRetries;
+  }
+
+  public long getRemoveRetries() {
+    return removeRetries;
+  }
+
+  public long getHelpRelocates() {
+    return helpRelocates;
+  }
+
+  public long getLookupRetries() {
+    return lookupRetries;
+  }
+
+  public long getFailedRelocations() {
+    return failedRelocations;
+  }
+
+  public long getResizes() {
+    return resizes;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return part of the lookups that found the key
+   */
+  public double getHitRate() {
+    return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  public long getExpirations() {
+    return expirations;
+  }
+
+  public long getSlowLookups() {
+    return slowLookups;
+  }
+
+  @Override
+  public String toString() {
+    return "CuckooStats{" +
+           "pathLengths=" + Arrays.toString(pathLengths) +
+           ", stashedEntries=" + stashedEntries +
+           ", putRetries=" + putRetries +
+           ", removeRetries=" + removeRetries +
+           ", helpRelocates=" + helpRelocates +
+           ", lookupRetries=" + lookupRetries +
+           ", failedRelocations=" + failedRelocations +
+           ", resizes=" + resizes +
+           ", hits=" + hits +
+           ", misses=" + misses +
+           ", evictions=" + evictions +
+           ", expirations=" + expirations +
+           ", slowLookups=" + slowLookups +
+           '}';
+  }
+}
@@ -0,0 +1,195 @@
+package com.github.lpld.cuckoo;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable cuckoo hash map for data that is loaded once and then only read.
+ *
+ * <p>All keys are placed in two tables with no stash, so a lookup reads exactly two slots. The
+ * slots are kept in a single array, in which the value of each key follows the key, so a slot
+ * takes one read from memory instead of the two that an entry object would cost. Nothing in the
+ * map ever changes after it's built: there are no flags, no volatile reads, and no retries of a
+ * lookup that has raced with a relocation.
+ *
+ * <p>All fields are final, so a frozen map can be handed to other threads in any way, even
+ * through a plain field, and they will see all of its entries.
+ *
+ * <p>A frozen map is built by {@link #copyOf}, or by {@code freeze()} of the other maps. The
+ * entries are first put into a {@link NotThreadSafeCuckooHashMap} with two tables and no stash,
+ * which rehashes with new seeds and grows until every key has a slot, and its tables are then
+ * copied. Building takes as long as filling that map; a map that already has two tables and no
+ * stash is copied as it is.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public final class FrozenCuckooHashMap<K, V> extends AbstractMap<K, V> {
+
+  private static final int TABLES_COUNT = 2;
+
+  /**
+   * Largest length of an array that all JVMs can allocate.
+   */
+  private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+  /**
+   * Number of slots in each table.
+   */
+  private final int capacity;
+
+  /**
+   * Key and value of slot {@code i} of table {@code t} at {@code 2 * (t * capacity + i)} and the
+   * element after it, {@code null} in a free slot.
+   */
+  private final Object[] slots;
+
+  private final Hasher hasher;
+  private final int size;
+
+  /**
+   * @param map map with {@value #TABLES_COUNT} tables and an empty stash
+   * @throws IllegalArgumentException if the tables of the map are too large to be copied into a
+   *                                  single array
+   */
+  FrozenCuckooHashMap(NotThreadSafeCuckooHashMap<K, V> map) {
+    long length = 2L * TABLES_COUNT * map.capacity;
+    if (length > MAX_ARRAY_LENGTH) {
+      throw new IllegalArgumentException("Capacity too large to freeze: " + map.capacity);
+    }
+
+    this.capacity = map.capacity;
+    this.hasher = map.hasher;
+    this.size = map.size;
+    this.slots = new Object[(int) length];
+
+    for (int t = 0; t < TABLES_COUNT; t++) {
+      SimpleEntry<K, V>[] table = map.tables[t];
+      for (int i = 0; i < capacity; i++) {
+        if (table[i] != null) {
+          int s = 2 * (t * capacity + i);
+          slots[s] = table[i].getKey();
+          slots[s + 1] = table[i].getValue();
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a frozen map with all entries of the source. A source that is modified concurrently
+   * is copied as its iterator returns it.
+   */
+  public static <K, V> FrozenCuckooHashMap<K, V> copyOf(Map<? extends K, ? extends V> source) {
+    NotThreadSafeCuckooHashMap<K, V> staging = new NotThreadSafeCuckooHashMap<K, V>(
+        source.size(), TABLES_COUNT, 0.5f, true, new SeededHasher());
+    staging.setStashSize(0);
+    staging.putAll(source);
+    return new FrozenCuckooHashMap<K, V>(staging);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    int s = find(key);
+    return s < 0 ? null : (V) slots[s + 1];
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return find(key) >= 0;
+  }
+
+  /**
+   * @return index of the key in {@link #slots}, or -1 if it's absent
+   */
+  private int find(Object key) {
+    long h = hasher.hash(key);
+
+    int s = 2 * (Hasher.tableHash(h, 0) & (capacity - 1));
+    if (key.equals(slots[s])) {
+      return s;
+    }
+
+    s = 2 * (capacity + (Hasher.tableHash(h, 1) & (capacity - 1)));
+    if (key.equals(slots[s])) {
+      return s;
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      int s = find(e.getKey());
+      return s >= 0 && (slots[s + 1] == null ? e.getValue() == null
+                                             : slots[s + 1].equals(e.getValue()));
+    }
+  }
+
+  /**
+   * Returns the entries of the first table and then of the second one.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+    /**
+     * Index in {@link #slots} of the next key.
+     */
+    private int index;
+
+    EntryIterator() {
+      skipEmpty();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return index < slots.length;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map.Entry<K, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<K, V> e = new SimpleImmutableEntry<K, V>((K) slots[index], (V) slots[index + 1]);
+      index += 2;
+      skipEmpty();
+      return e;
+    }
+
+    private void skipEmpty() {
+      while (index < slots.length && slots[index] == null) {
+        index += 2;
+      }
+    }
+  }
+}
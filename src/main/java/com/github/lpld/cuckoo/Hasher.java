@@ -0,0 +1,46 @@
+package com.github.lpld.cuckoo;
+
+/**
+ * Hash function strategy of the cuckoo maps.
+ *
+ * <p>A hasher produces a single 64-bit hash per key, and each half of it serves as one of the two
+ * hash functions of the map. The halves must therefore be independent of each other: keys that
+ * collide in one table should not be any more likely to collide in the other one. Maps with more
+ * than two tables derive the functions of the other tables from the same hash, see
+ * {@link #tableHash}.
+ *
+ * <p>Hashers are seeded, and the maps ask for a new seed whenever they rehash their tables, so
+ * that a set of keys that could not be placed with one pair of functions is placed with a new,
+ * unrelated pair.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public interface Hasher {
+
+  /**
+   * @return 64-bit hash of the key; the low and the high 32 bits are used as two hash functions
+   */
+  long hash(Object key);
+
+  /**
+   * @return a hasher of the same kind that uses the given seed
+   */
+  Hasher withSeed(long seed);
+
+  /**
+   * @return hash of a key in the given table, computed from the 64-bit hash of the key: the low
+   * half for the first table, the high half for the second one, and a remix of the whole hash
+   * for each further table
+   */
+  static int tableHash(long hash, int table) {
+    switch (table) {
+      case 0:
+        return (int) hash;
+      case 1:
+        return (int) (hash >>> 32);
+      default:
+        return (int) SeededHasher.mix(hash + table);
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package com.github.lpld.cuckoo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Single-threaded cuckoo hash map from {@code long} keys to {@code long} values.
+ *
+ * <p>Keys and values are kept in parallel primitive arrays, so that neither lookups nor updates
+ * box the key or allocate an entry. A slot is empty when its key is {@code 0}; the key {@code 0}
+ * itself is kept outside of the tables. Missing keys are reported with {@link #noEntryValue()}.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class LongLongCuckooMap {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float DEFAULT_MAX_LOAD_FACTOR = 0.5f;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+  private static final int TABLES_COUNT = 2;
+
+  private static final long EMPTY = 0;
+
+  int capacity;
+
+  int MAX_ROUTE = 10;
+  int MAX_SEARCH_NODES = 256;
+
+  long[][] keys;
+  long[][] values;
+
+  /**
+   * Number of entries in the tables, not counting the {@link #EMPTY} key.
+   */
+  int size;
+  long seed;
+
+  private boolean hasEmptyKey;
+  private long emptyKeyValue;
+
+  private final float maxLoadFactor;
+  private final long noEntryValue;
+
+  private CuckooPath path;
+
+  public LongLongCuckooMap(int capacity, float maxLoadFactor, long noEntryValue) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    if (!(maxLoadFactor > 0 && maxLoadFactor <= 1)) {
+      throw new IllegalArgumentException("Illegal load factor: " + maxLoadFactor);
+    }
+
+    this.capacity = NotThreadSafeCuckooHashMap.tableSizeFor(capacity);
+    this.maxLoadFactor = maxLoadFactor;
+    this.noEntryValue = noEntryValue;
+    this.seed = ThreadLocalRandom.current().nextLong();
+    this.keys = new long[TABLES_COUNT][this.capacity];
+    this.values = new long[TABLES_COUNT][this.capacity];
+  }
+
+  public LongLongCuckooMap(int capacity) {
+    this(capacity, DEFAULT_MAX_LOAD_FACTOR, 0);
+  }
+
+  public LongLongCuckooMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @return value that {@link #get}, {@link #put} and {@link #remove} return for a missing key
+   */
+  public long noEntryValue() {
+    return noEntryValue;
+  }
+
+  public long get(long key) {
+    if (key == EMPTY) {
+      return hasEmptyKey ? emptyKeyValue : noEntryValue;
+    }
+
+    long h = hash(key);
+    int idx1 = indexFor(h, 0);
+    if (keys[0][idx1] == key) {
+      return values[0][idx1];
+    }
+
+    int idx2 = indexFor(h, 1);
+    if (keys[1][idx2] == key) {
+      return values[1][idx2];
+    }
+
+    return noEntryValue;
+  }
+
+  public boolean containsKey(long key) {
+    if (key == EMPTY) {
+      return hasEmptyKey;
+    }
+
+    long h = hash(key);
+    return keys[0][indexFor(h, 0)] == key || keys[1][indexFor(h, 1)] == key;
+  }
+
+  /**
+   * @return previous value for the key, or {@link #noEntryValue()} if there was none
+   */
+  public long put(long key, long value) {
+    if (key == EMPTY) {
+      long old = hasEmptyKey ? emptyKeyValue : noEntryValue;
+      hasEmptyKey = true;
+      emptyKeyValue = value;
+      return old;
+    }
+
+    long h = hash(key);
+    int idx1 = indexFor(h, 0);
+    if (keys[0][idx1] == key) {
+      return replaceValue(0, idx1, value);
+    }
+
+    int idx2 = indexFor(h, 1);
+    if (keys[1][idx2] == key) {
+      return replaceValue(1, idx2, value);
+    }
+
+    if (size + 1 > maxLoadFactor * TABLES_COUNT * capacity) {
+      rehash(capacity << 1);
+    }
+
+    while (!insert(key, value)) {
+      rehash(capacity << 1);
+    }
+    size++;
+
+    return noEntryValue;
+  }
+
+  private long replaceValue(int table, int idx, long value) {
+    long old = values[table][idx];
+    values[table][idx] = value;
+    return old;
+  }
+
+  /**
+   * Puts a key that is not in the map yet.
+   *
+   * @return false if there is a cuckoo cycle and the tables have to be rehashed
+   */
+  private boolean insert(long key, long value) {
+    long h = hash(key);
+    int idx1 = indexFor(h, 0);
+    int idx2 = indexFor(h, 1);
+
+    if (keys[0][idx1] == EMPTY) {
+      store(0, idx1, key, value);
+    } else if (keys[1][idx2] == EMPTY) {
+      store(1, idx2, key, value);
+    } else {
+      int root = relocate(idx1, idx2);
+      if (root < 0) {
+        return false;
+      }
+      store(path.table(root), path.position(root), key, value);
+    }
+
+    return true;
+  }
+
+  private void store(int table, int idx, long key, long value) {
+    keys[table][idx] = key;
+    values[table][idx] = value;
+  }
+
+  /**
+   * Searches breadth-first for the shortest cuckoo path starting from one of the two slots of a
+   * key, and moves the entries along it.
+   *
+   * @return root node of the path, whose slot is now free, or -1 if no path was found within
+   * {@link #MAX_ROUTE} moves and {@link #MAX_SEARCH_NODES} examined slots
+   */
+  private int relocate(int idx1, int idx2) {
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+    }
+
+    path.clear();
+    path.add(0, idx1, -1);
+    path.add(1, idx2, -1);
+
+    while (path.hasNext()) {
+      int node = path.next();
+      if (path.depth(node) >= MAX_ROUTE) {
+        return -1;
+      }
+
+      int table = path.table(node);
+      long key = keys[table][path.position(node)];
+
+      int destTable = 1 - table;
+      int destIndex = indexFor(hash(key), destTable);
+      if (path.onBranch(node, destTable, destIndex)) {
+        continue;
+      }
+
+      int child = path.add(destTable, destIndex, node);
+      if (child < 0) {
+        return -1;
+      }
+
+      if (keys[destTable][destIndex] == EMPTY) {
+        return move(child);
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves each entry on the branch one step down, starting from the free slot at {@code node}.
+   */
+  private int move(int node) {
+    int parent;
+    while ((parent = path.parent(node)) >= 0) {
+      int from = path.position(parent);
+      store(path.table(node), path.position(node),
+            keys[path.table(parent)][from], values[path.table(parent)][from]);
+      node = parent;
+    }
+    return node;
+  }
+
+  /**
+   * Sets the maximum number of entries that may be displaced to make room for a new one.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < TABLES_COUNT) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  /**
+   * Rebuilds the tables with the given capacity and a new seed, growing them further if the
+   * entries still don't fit.
+   */
+  private void rehash(int newCapacity) {
+    long[][] oldKeys = keys;
+    long[][] oldValues = values;
+
+    while (true) {
+      if (newCapacity > MAXIMUM_CAPACITY) {
+        throw new IllegalStateException("Maximum capacity reached");
+      }
+
+      capacity = newCapacity;
+      keys = new long[TABLES_COUNT][capacity];
+      values = new long[TABLES_COUNT][capacity];
+      seed = ThreadLocalRandom.current().nextLong();
+
+      if (reinsert(oldKeys, oldValues)) {
+        return;
+      }
+
+      newCapacity = capacity << 1;
+    }
+  }
+
+  private boolean reinsert(long[][] oldKeys, long[][] oldValues) {
+    for (int t = 0; t < TABLES_COUNT; t++) {
+      for (int i = 0; i < oldKeys[t].length; i++) {
+        if (oldKeys[t][i] != EMPTY && !insert(oldKeys[t][i], oldValues[t][i])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return removed value, or {@link #noEntryValue()} if there was no value for the key
+   */
+  public long remove(long key) {
+    if (key == EMPTY) {
+      long old = hasEmptyKey ? emptyKeyValue : noEntryValue;
+      hasEmptyKey = false;
+      return old;
+    }
+
+    long h = hash(key);
+    int table = 0;
+    int idx = indexFor(h, 0);
+    if (keys[0][idx] != key) {
+      table = 1;
+      idx = indexFor(h, 1);
+      if (keys[1][idx] != key) {
+        return noEntryValue;
+      }
+    }
+
+    long old = values[table][idx];
+    store(table, idx, EMPTY, 0);
+    size--;
+
+    return old;
+  }
+
+  public int size() {
+    return hasEmptyKey ? size + 1 : size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  private long hash(long key) {
+    return SeededHasher.mix(seed ^ key);
+  }
+
+  /**
+   * @return index in the given table for a key with the given 64-bit hash
+   */
+  int indexFor(long hash, int table) {
+    int h = table == 0 ? (int) hash : (int) (hash >>> 32);
+    return h & (capacity - 1);
+  }
+}
@@ -0,0 +1,273 @@
+package com.github.lpld.cuckoo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.isMarked;
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.timestamp;
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.updateTimestamp;
+
+/**
+ * {@link OffHeapLongLongCuckooMap} whose tables live in a memory-mapped file, so that a restarted
+ * process can {@link #open} an existing table and serve lookups right away, without reading or
+ * rebuilding anything.
+ *
+ * <p>The file consists of a header of {@value #HEADER_SIZE} bytes followed by the two tables,
+ * {@code capacity} slots of {@value OffHeapLongLongCuckooMap#SLOT_SIZE} bytes each. All numbers
+ * are in the native byte order:
+ * <pre>
+ *   offset  size
+ *        0     8  magic, {@value #MAGIC}
+ *        8     4  format version, {@value #VERSION}
+ *       12     4  capacity of each table, a power of two
+ *       16     8  hash seed
+ *       24     8  value returned for missing keys
+ *       32     4  state: 0 if the file was checkpointed, 1 if it has been changed since
+ *       40     8  number of entries
+ *       48    24  slot of the key 0: flags, 1 if the key is present, value
+ *      128        first table, then second table
+ * </pre>
+ * Each slot is a 4-byte flags word, 4 bytes of padding, the key and the value.
+ *
+ * <p>Changes are written to the mapping directly, so they survive a crash of the process, but
+ * only {@link #force()} makes them durable across a crash of the machine. If the file is opened
+ * while its state says it was changed after the last checkpoint, all slots are scanned once to
+ * repair the ones that were being written when the process stopped.
+ *
+ * <p>The capacity is fixed when the file is created: a key for which no cuckoo path can be found
+ * makes {@link #put} throw {@link IllegalStateException}. Tables should therefore be created with
+ * at least as many slots in each table as there will be entries, which keeps the load factor
+ * under one half.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class MappedLongLongCuckooMap extends OffHeapLongLongCuckooMap implements Closeable {
+
+  static final long MAGIC = 0x4355434B4F4F4D50L;
+  static final int VERSION = 1;
+
+  static final int MAGIC_OFFSET = 0;
+  static final int VERSION_OFFSET = 8;
+  static final int CAPACITY_OFFSET = 12;
+  static final int SEED_OFFSET = 16;
+  static final int NO_ENTRY_VALUE_OFFSET = 24;
+  static final int STATE_OFFSET = 32;
+  static final int CONTROL_OFFSET = 40;
+  static final int HEADER_SIZE = 128;
+
+  private static final int CLEAN = 0;
+  private static final int DIRTY = 1;
+
+  /**
+   * Largest power of two of slots for which the whole file can still be mapped at once.
+   */
+  private static final int MAXIMUM_CAPACITY = 1 << 25;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+
+  /**
+   * Whether the state in the header is {@link #DIRTY}. Guarded by the write lock.
+   */
+  private boolean dirty;
+
+  private MappedLongLongCuckooMap(FileChannel channel, MappedByteBuffer buffer) {
+    super(slice(buffer, CONTROL_OFFSET, CONTROL_SIZE), tablesOf(buffer), 1f,
+          (long) LONGS.get(buffer, NO_ENTRY_VALUE_OFFSET), false);
+    this.channel = channel;
+    this.buffer = buffer;
+    this.dirty = (int) INTS.get(buffer, STATE_OFFSET) != CLEAN;
+
+    // the table can't grow, so it's worth searching longer for a path
+    this.MAX_ROUTE = 64;
+    this.MAX_SEARCH_NODES = 1024;
+  }
+
+  /**
+   * Creates a new table in the given file, replacing its content if it already exists.
+   *
+   * @param capacity number of slots in each of the two tables, rounded up to a power of two
+   */
+  public static MappedLongLongCuckooMap create(Path file, int capacity, long noEntryValue)
+      throws IOException {
+    if (capacity < 0 || capacity > MAXIMUM_CAPACITY) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    capacity = NotThreadSafeCuckooHashMap.tableSizeFor(capacity);
+
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING,
+                                           StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+      LONGS.set(buffer, MAGIC_OFFSET, MAGIC);
+      INTS.set(buffer, VERSION_OFFSET, VERSION);
+      INTS.set(buffer, CAPACITY_OFFSET, capacity);
+      LONGS.set(buffer, SEED_OFFSET, ThreadLocalRandom.current().nextLong());
+      LONGS.set(buffer, NO_ENTRY_VALUE_OFFSET, noEntryValue);
+      INTS.set(buffer, STATE_OFFSET, CLEAN);
+      buffer.force();
+
+      return new MappedLongLongCuckooMap(channel, buffer);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a table created by {@link #create}.
+   *
+   * @throws IOException if the file is not a table of a supported version or is truncated
+   */
+  public static MappedLongLongCuckooMap open(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+    try {
+      long length = channel.size();
+      if (length < HEADER_SIZE) {
+        throw new IOException("Not a cuckoo table: " + file);
+      }
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      if ((long) LONGS.get(buffer, MAGIC_OFFSET) != MAGIC) {
+        throw new IOException("Not a cuckoo table: " + file);
+      }
+      int version = (int) INTS.get(buffer, VERSION_OFFSET);
+      if (version != VERSION) {
+        throw new IOException("Unsupported table version " + version + ": " + file);
+      }
+      int capacity = (int) INTS.get(buffer, CAPACITY_OFFSET);
+      if (capacity <= 0 || capacity > MAXIMUM_CAPACITY || Integer.bitCount(capacity) != 1
+          || length < fileSize(capacity)) {
+        throw new IOException("Corrupted or truncated table: " + file);
+      }
+
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+      MappedLongLongCuckooMap map = new MappedLongLongCuckooMap(channel, buffer);
+      if (map.dirty) {
+        map.recover();
+      }
+      return map;
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes all changes to the storage device and marks the file as checkpointed. Updates are
+   * blocked while it runs, lookups are not.
+   */
+  public void force() {
+    writeLock.lock();
+    try {
+      buffer.force();
+      if (dirty) {
+        INTS.setVolatile(buffer, STATE_OFFSET, CLEAN);
+        buffer.force();
+        dirty = false;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Checkpoints the table with {@link #force()} and closes the file. The map must not be used
+   * afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    force();
+    channel.close();
+  }
+
+  @Override
+  void beginUpdate() {
+    if (!dirty) {
+      INTS.setVolatile(buffer, STATE_OFFSET, DIRTY);
+      dirty = true;
+    }
+  }
+
+  /**
+   * Repairs a file that was changed after its last checkpoint.
+   *
+   * <p>Writes are made one at a time, each with its slot marked, so a slot that is still marked
+   * was being written when the process stopped, and its key and value may come from different
+   * writes. If its key is also in its other slot, unmarked, the slot was the destination of a
+   * move whose source is still intact, and the source is kept. Otherwise the slot was written by
+   * a put or a remove that didn't complete, and is dropped along with whatever it held. Marked
+   * slots are cleared before anything else, so that no torn slot is taken for the intact copy of
+   * an entry. An entry left in both of its slots by a move that was interrupted between two
+   * writes is then kept in the first table only, and the entries are counted again.
+   */
+  private void recover() {
+    Tables t = tables;
+
+    for (int table = 0; table < 2; table++) {
+      ByteBuffer b = t.buffers[table];
+      for (int i = 0; i < t.capacity; i++) {
+        int offset = i * SLOT_SIZE;
+        int f = (int) INTS.get(b, offset + FLAGS_OFFSET);
+        if (isMarked(f)) {
+          LONGS.set(b, offset + KEY_OFFSET, EMPTY);
+          LONGS.set(b, offset + VALUE_OFFSET, 0L);
+          INTS.set(b, offset + FLAGS_OFFSET, updateTimestamp(0, timestamp(f) + 1));
+        }
+      }
+    }
+
+    long size = 0;
+    for (int table = 0; table < 2; table++) {
+      ByteBuffer b = t.buffers[table];
+      for (int i = 0; i < t.capacity; i++) {
+        int offset = i * SLOT_SIZE;
+        long key = (long) LONGS.get(b, offset + KEY_OFFSET);
+        if (key == EMPTY) {
+          continue;
+        }
+        if (table == 1 && t.key(0, t.indexFor(t.hash(key), 0)) == key) {
+          LONGS.set(b, offset + KEY_OFFSET, EMPTY);
+          LONGS.set(b, offset + VALUE_OFFSET, 0L);
+          continue;
+        }
+        size++;
+      }
+    }
+
+    // the key 0 has a single slot, so a write to it that didn't complete is dropped as well
+    int f = (int) INTS.get(control, EMPTY_KEY_SLOT_OFFSET + FLAGS_OFFSET);
+    if (isMarked(f)) {
+      LONGS.set(control, EMPTY_KEY_SLOT_OFFSET + KEY_OFFSET, 0L);
+      LONGS.set(control, EMPTY_KEY_SLOT_OFFSET + VALUE_OFFSET, 0L);
+      INTS.set(control, EMPTY_KEY_SLOT_OFFSET + FLAGS_OFFSET, updateTimestamp(0, timestamp(f) + 1));
+    }
+    if ((long) LONGS.get(control, EMPTY_KEY_SLOT_OFFSET + KEY_OFFSET) != 0) {
+      size++;
+    }
+    LONGS.setVolatile(control, SIZE_OFFSET, size);
+
+    force();
+  }
+
+  private static Tables tablesOf(ByteBuffer buffer) {
+    int capacity = (int) INTS.get(buffer, CAPACITY_OFFSET);
+    int tableSize = capacity * SLOT_SIZE;
+    return new Tables(capacity, (long) LONGS.get(buffer, SEED_OFFSET),
+                      slice(buffer, HEADER_SIZE, tableSize),
+                      slice(buffer, HEADER_SIZE + tableSize, tableSize));
+  }
+
+  private static long fileSize(int capacity) {
+    return HEADER_SIZE + 2L * capacity * SLOT_SIZE;
+  }
+}
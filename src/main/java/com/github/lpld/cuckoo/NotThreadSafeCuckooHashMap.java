@@ -1,27 +1,130 @@
 package com.github.lpld.cuckoo;
 
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
+ * Single-threaded cuckoo hash map.
+ *
+ * <p>The tables are doubled once the load factor exceeds {@code maxLoadFactor}, or when a cuckoo
+ * cycle prevents an insertion. Every rehash gives the {@link Hasher} a new random seed. With
+ * {@code reseedOnCycle} a cycle first makes the map try to rehash the same tables with a new seed,
+ * which is cheaper than growing when the map is not actually full.
+ *
+ * <p>Every key has one slot in each of the tables, two by default. With three or four tables a
+ * key has more places to go and a free one is found with shorter cuckoo paths, so the tables can
+ * be filled to 85-90% instead of 50%, at the cost of examining more slots on a lookup miss.
+ *
+ * <p>A key for which no cuckoo path is found is first put aside into a small stash of
+ * {@link #setStashSize(int) four} entries, so that a rare unlucky key doesn't make the whole map
+ * rehash. The stash is only searched when a key is not found in its slots, and its entries
+ * are moved back into the tables when a removal makes room, or by the next rehash.
+ *
  * @author leopold
  * @since 3/02/15
  */
 public class NotThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
 
   private static final int DEFAULT_CAPACITY = 16;
-  private static final int TABLES_COUNT = 2;
+  private static final float DEFAULT_MAX_LOAD_FACTOR = 0.5f;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+  private static final int DEFAULT_TABLES_COUNT = 2;
+  static final int MAX_TABLES_COUNT = 8;
+
+  /**
+   * How many times in a row the map may be rehashed with a new seed before it has to grow.
+   */
+  private static final int MAX_RESEEDS = 3;
+
+  /**
+   * Number of keys whose slots {@link #getAll} and {@link #putAll(Object[], Object[])} read at
+   * once.
+   */
+  private static final int BATCH_SIZE = 16;
 
   int capacity;
+  final int tablesCount;
 
   int MAX_ROUTE = 10;
+  int MAX_SEARCH_NODES = 256;
+  int STASH_SIZE = 4;
 
   SimpleEntry<K, V>[][] tables;
 
+  /**
+   * Entries that didn't fit into the tables, in its first {@link #stashSize} elements.
+   */
+  SimpleEntry<K, V>[] stash;
+  int stashSize;
+
+  int size;
+  Hasher hasher;
+
+  /**
+   * Number of structural modifications, which make iterators fail.
+   */
+  int modCount;
+
+  private final float maxLoadFactor;
+  private final boolean reseedOnCycle;
+  private int reseeds;
+
+  private CuckooPath path;
+
+  /**
+   * Hashes of the keys of the current batch and the entries found for them, see
+   * {@link #findBatch}.
+   */
+  private long[] batchHashes;
+  private SimpleEntry<K, V>[] batchEntries;
+
+
+  /**
+   * @param capacity    number of slots in each table
+   * @param tablesCount number of tables, from 2 to {@value #MAX_TABLES_COUNT}
+   */
+  public NotThreadSafeCuckooHashMap(int capacity, int tablesCount, float maxLoadFactor,
+                                    boolean reseedOnCycle, Hasher hasher) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    if (tablesCount < 2 || tablesCount > MAX_TABLES_COUNT) {
+      throw new IllegalArgumentException("Illegal number of tables: " + tablesCount);
+    }
+    if (!(maxLoadFactor > 0 && maxLoadFactor <= 1)) {
+      throw new IllegalArgumentException("Illegal load factor: " + maxLoadFactor);
+    }
+
+    this.capacity = tableSizeFor(capacity);
+    this.tablesCount = tablesCount;
+    this.maxLoadFactor = maxLoadFactor;
+    this.reseedOnCycle = reseedOnCycle;
+    this.hasher = hasher;
+    tables = new SimpleEntry[tablesCount][this.capacity];
+    stash = new SimpleEntry[STASH_SIZE];
+  }
+
+  public NotThreadSafeCuckooHashMap(int capacity, float maxLoadFactor, boolean reseedOnCycle,
+                                    Hasher hasher) {
+    this(capacity, DEFAULT_TABLES_COUNT, maxLoadFactor, reseedOnCycle, hasher);
+  }
+
+  public NotThreadSafeCuckooHashMap(int capacity, float maxLoadFactor, boolean reseedOnCycle) {
+    this(capacity, maxLoadFactor, reseedOnCycle, new SeededHasher());
+  }
+
+  public NotThreadSafeCuckooHashMap(int capacity, float maxLoadFactor) {
+    this(capacity, maxLoadFactor, false);
+  }
 
   public NotThreadSafeCuckooHashMap(int capacity) {
-    this.capacity = capacity;
-    tables = new SimpleEntry[TABLES_COUNT][capacity];
+    this(capacity, DEFAULT_MAX_LOAD_FACTOR);
   }
 
   public NotThreadSafeCuckooHashMap() {
@@ -30,39 +133,24 @@ public class NotThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
 
   @Override
   public V put(K key, V value) {
-    int h1 = hash1(key);
-    int idx1 = indexFor(h1);
-    SimpleEntry<K, V> existingValue = null;
-
-    SimpleEntry<K, V> e1 = tables[0][idx1];
-    if (e1 != null && e1.getKey().equals(key)) {
-      existingValue = e1;
-    }
-
-    int h2 = hash2(key);
-    int idx2 = indexFor(h2);
-    SimpleEntry<K, V> e2 = tables[1][idx2];
-    if (e2 != null && e2.getKey().equals(key)) {
-      existingValue = e2;
-    }
+    SimpleEntry<K, V> existingValue = findInternal(key);
 
     if (existingValue == null) {
-      if (e1 == null) {
-        tables[0][idx1] = new SimpleEntry<K, V>(key, value);
-      } else if (e2 == null) {
-        tables[1][idx2] = new SimpleEntry<K, V>(key, value);
-      } else {
+      if (size + 1 > maxLoadFactor * tablesCount * capacity) {
+        rehash(capacity << 1);
+      }
 
-        if (relocate(0, idx1)) {
-          tables[0][idx1] = new SimpleEntry<K, V>(key, value);
-        } else if (relocate(1, idx2)) {
-          tables[1][idx2] = new SimpleEntry<K, V>(key, value);
+      SimpleEntry<K, V> entry = new SimpleEntry<K, V>(key, value);
+      while (!insert(entry) && !addToStash(entry)) {
+        if (reseedOnCycle && reseeds < MAX_RESEEDS) {
+          reseeds++;
+          rehash(capacity);
         } else {
-          throw new IllegalStateException("rehashing needed");
+          rehash(capacity << 1);
         }
-
-//        throw new UnsupportedOperationException("Not implemented yet");
       }
+      size++;
+      modCount++;
 
       return null;
     } else {
@@ -70,78 +158,246 @@ public class NotThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
     }
   }
 
-  private boolean relocate(int table, int index) {
-    int[] route = new int[MAX_ROUTE];
-
-    boolean pathFound = false;
-    int depth = 0;
-    do {
-      SimpleEntry<K, V> e = tables[table][index];
-      if (e == null) {
-        pathFound = true;
-      } else {
-        route[depth] = index;
-        table = 1 - table;
-        int hash = table == 0 ? hash1(e.getKey()) : hash2(e.getKey());
-        index = indexFor(hash);
-        depth++;
+  /**
+   * Puts an entry with a key that is not in the map yet.
+   *
+   * @return false if there is a cuckoo cycle and the tables have to be rehashed
+   */
+  private boolean insert(SimpleEntry<K, V> entry) {
+    long h = hasher.hash(entry.getKey());
+
+    for (int t = 0; t < tablesCount; t++) {
+      int idx = indexFor(h, t);
+      if (tables[t][idx] == null) {
+        tables[t][idx] = entry;
+        return true;
       }
+    }
 
+    int root = relocate(h);
+    if (root < 0) {
+      return false;
+    }
+    tables[path.table(root)][path.position(root)] = entry;
+    return true;
+  }
 
-    } while (!pathFound && depth < MAX_ROUTE);
-
-    if (!pathFound) {
+  /**
+   * @return false if the stash is full
+   */
+  private boolean addToStash(SimpleEntry<K, V> entry) {
+    if (stashSize == stash.length) {
       return false;
     }
+    stash[stashSize++] = entry;
+    return true;
+  }
+
+  /**
+   * @return index of the key in the stash, or -1 if it's not there
+   */
+  private int findInStash(Object key) {
+    for (int i = 0; i < stashSize; i++) {
+      if (stash[i].getKey().equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void removeFromStash(int index) {
+    stash[index] = stash[--stashSize];
+    stash[stashSize] = null;
+  }
+
+  /**
+   * Moves entries from the stash into the tables, as far as they fit now.
+   */
+  private void drainStash() {
+    for (int i = stashSize - 1; i >= 0; i--) {
+      if (insert(stash[i])) {
+        removeFromStash(i);
+      }
+    }
+  }
 
-    table = 1 - table;
-    for (int i = depth - 1; i >= 0; i--, table = 1 - table) {
-      index = route[i];
-      SimpleEntry<K, V> e = tables[table][index];
+  /**
+   * Rebuilds the tables with the given capacity and a new seed, growing them further if the
+   * entries still don't fit.
+   */
+  private void rehash(int newCapacity) {
+    SimpleEntry<K, V>[][] oldTables = tables;
+    SimpleEntry<K, V>[] oldStash = Arrays.copyOf(stash, stashSize);
+
+    while (true) {
+      if (newCapacity > MAXIMUM_CAPACITY) {
+        throw new IllegalStateException("Maximum capacity reached");
+      }
+      if (newCapacity > capacity) {
+        reseeds = 0;
+      }
+
+      capacity = newCapacity;
+      tables = new SimpleEntry[tablesCount][capacity];
+      stash = new SimpleEntry[STASH_SIZE];
+      stashSize = 0;
+      hasher = hasher.withSeed(ThreadLocalRandom.current().nextLong());
 
-      int hash = table == 0 ? hash2(e.getKey()) : hash1(e.getKey());
-      int destIndex = indexFor(hash);
+      if (reinsert(oldTables) && reinsert(oldStash)) {
+        return;
+      }
+
+      newCapacity = capacity << 1;
+    }
+  }
 
-      tables[1 - table][destIndex] = e;
+  private boolean reinsert(SimpleEntry<K, V>[][] oldTables) {
+    for (SimpleEntry<K, V>[] table : oldTables) {
+      if (!reinsert(table)) {
+        return false;
+      }
     }
+    return true;
+  }
 
+  private boolean reinsert(SimpleEntry<K, V>[] entries) {
+    for (SimpleEntry<K, V> e : entries) {
+      if (e != null && !insert(e) && !addToStash(e)) {
+        return false;
+      }
+    }
     return true;
+  }
+
+  /**
+   * Searches breadth-first for the shortest cuckoo path starting from one of the slots of a key
+   * with the given hash, and moves the entries along it.
+   *
+   * @return root node of the path, whose slot is now free, or -1 if no path was found within
+   * {@link #MAX_ROUTE} moves and {@link #MAX_SEARCH_NODES} examined slots
+   */
+  private int relocate(long h) {
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+    }
+
+    path.clear();
+    for (int t = 0; t < tablesCount; t++) {
+      path.add(t, indexFor(h, t), -1);
+    }
+
+    while (path.hasNext()) {
+      int node = path.next();
+      if (path.depth(node) >= MAX_ROUTE) {
+        return -1;
+      }
+
+      int table = path.table(node);
+      SimpleEntry<K, V> e = tables[table][path.position(node)];
+      long eh = hasher.hash(e.getKey());
+
+      // the entry can go to its slot in any other table
+      for (int destTable = 0; destTable < tablesCount; destTable++) {
+        if (destTable == table) {
+          continue;
+        }
+
+        int destIndex = indexFor(eh, destTable);
+        if (path.onBranch(node, destTable, destIndex)) {
+          continue;
+        }
+
+        int child = path.add(destTable, destIndex, node);
+        if (child < 0) {
+          return -1;
+        }
+
+        if (tables[destTable][destIndex] == null) {
+          return move(child);
+        }
+      }
+    }
 
+    return -1;
   }
 
-  @Override
-  public V remove(Object key) {
-    int h1 = hash1(key);
-    int idx1 = indexFor(h1);
-    SimpleEntry<K, V> existingValue = null;
+  /**
+   * Moves each entry on the branch one step down, starting from the free slot at {@code node}.
+   */
+  private int move(int node) {
+    int parent;
+    while ((parent = path.parent(node)) >= 0) {
+      tables[path.table(node)][path.position(node)] =
+          tables[path.table(parent)][path.position(parent)];
+      node = parent;
+    }
+    return node;
+  }
 
-    SimpleEntry<K, V> e1 = tables[0][idx1];
-    if (e1 != null && e1.getKey().equals(key)) {
-      existingValue = e1;
-    } else {
-      e1 = null;
+  /**
+   * Sets the maximum number of entries that may be displaced to make room for a new one.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
     }
+    MAX_ROUTE = maxPathLength;
+  }
 
-    int h2 = hash2(key);
-    int idx2 = indexFor(h2);
-    SimpleEntry<K, V> e2 = tables[1][idx2];
-    if (e2 != null && e2.getKey().equals(key)) {
-      existingValue = e2;
-    } else {
-      e2 = null;
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < tablesCount) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
     }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
 
-    if (existingValue == null) {
-      return null;
+  /**
+   * Sets the maximum number of entries kept aside when no cuckoo path can be found for them.
+   * With {@code 0} the map rehashes every time that happens.
+   */
+  public void setStashSize(int stashSize) {
+    if (stashSize < 0) {
+      throw new IllegalArgumentException("Illegal stash size: " + stashSize);
+    }
+    STASH_SIZE = stashSize;
+    if (stashSize < this.stashSize) {
+      rehash(capacity);
     } else {
-      if (e1 == null) {
-        tables[1][idx2] = null;
-        return e2.getValue();
-      } else {
-        tables[0][idx1] = null;
-        return e1.getValue();
+      stash = Arrays.copyOf(stash, stashSize);
+    }
+    modCount++;
+  }
+
+  @Override
+  public V remove(Object key) {
+    long h = hasher.hash(key);
+
+    for (int t = 0; t < tablesCount; t++) {
+      int idx = indexFor(h, t);
+      SimpleEntry<K, V> e = tables[t][idx];
+      if (e != null && e.getKey().equals(key)) {
+        tables[t][idx] = null;
+        size--;
+        modCount++;
+        if (stashSize > 0) {
+          drainStash();
+        }
+        return e.getValue();
       }
     }
+
+    int s = stashSize > 0 ? findInStash(key) : -1;
+    if (s < 0) {
+      return null;
+    }
+    size--;
+    modCount++;
+    V value = stash[s].getValue();
+    removeFromStash(s);
+    return value;
   }
 
   @Override
@@ -151,44 +407,303 @@ public class NotThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
     return entry == null ? null : entry.getValue();
   }
 
+  @Override
+  public boolean containsKey(Object key) {
+    return findInternal(key) != null;
+  }
+
+  /**
+   * Looks up several keys at once: puts the value of {@code keys[i]} into {@code values[i]}, or
+   * {@code null} if the key is absent.
+   *
+   * <p>A loop of {@link #get} waits for the slot of each key to come from memory before it even
+   * hashes the next key. Here the keys are taken in batches: the hashes of a whole batch are
+   * computed first, then the slots of all of its keys are read table by table, and only then the
+   * keys of the entries found in them are compared. None of these reads depends on another one,
+   * so the processor has the cache misses of the whole batch outstanding at once.
+   *
+   * @return number of keys found
+   */
+  public int getAll(K[] keys, V[] values) {
+    if (values.length < keys.length) {
+      throw new IllegalArgumentException("Fewer values than keys: " + values.length);
+    }
+
+    int found = 0;
+    for (int from = 0; from < keys.length; from += BATCH_SIZE) {
+      int n = Math.min(BATCH_SIZE, keys.length - from);
+      findBatch(keys, from, n);
+
+      for (int i = 0; i < n; i++) {
+        SimpleEntry<K, V> e = batchEntries[i];
+        batchEntries[i] = null;
+        if (e != null) {
+          found++;
+        }
+        values[from + i] = e == null ? null : e.getValue();
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Puts {@code values[i]} for each key {@code keys[i]}, as a loop of {@link #put} would. The
+   * slots of the keys are read in batches, as by {@link #getAll}, so the values of the keys that
+   * are already present are replaced without waiting for each slot in turn.
+   */
+  public void putAll(K[] keys, V[] values) {
+    if (values.length < keys.length) {
+      throw new IllegalArgumentException("Fewer values than keys: " + values.length);
+    }
+
+    for (int from = 0; from < keys.length; from += BATCH_SIZE) {
+      int n = Math.min(BATCH_SIZE, keys.length - from);
+      findBatch(keys, from, n);
+
+      for (int i = 0; i < n; i++) {
+        SimpleEntry<K, V> e = batchEntries[i];
+        batchEntries[i] = null;
+        if (e != null) {
+          e.setValue(values[from + i]);
+        } else {
+          // a new key may move the entries found for the batch or rehash the tables, but they
+          // stay in the map; a new key that appears twice in the batch is found by the second put
+          put(keys[from + i], values[from + i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the entries of {@code n} keys starting from {@code keys[from]} and puts them, or
+   * {@code null} for the absent keys, into the first {@code n} elements of
+   * {@link #batchEntries}.
+   */
+  @SuppressWarnings("unchecked")
+  private void findBatch(Object[] keys, int from, int n) {
+    if (batchHashes == null) {
+      batchHashes = new long[BATCH_SIZE];
+      batchEntries = new SimpleEntry[BATCH_SIZE];
+    }
+
+    for (int i = 0; i < n; i++) {
+      batchHashes[i] = hasher.hash(keys[from + i]);
+    }
+
+    // bit i is set while the key i hasn't been found
+    long pending = (1L << n) - 1;
+
+    for (int t = 0; t < tablesCount && pending != 0; t++) {
+      SimpleEntry<K, V>[] table = tables[t];
+      for (int i = 0; i < n; i++) {
+        if ((pending & 1L << i) != 0) {
+          batchEntries[i] = table[indexFor(batchHashes[i], t)];
+        }
+      }
+
+      for (int i = 0; i < n; i++) {
+        SimpleEntry<K, V> e = batchEntries[i];
+        if ((pending & 1L << i) != 0 && e != null && e.getKey().equals(keys[from + i])) {
+          pending &= ~(1L << i);
+        }
+      }
+    }
+
+    for (int i = 0; i < n; i++) {
+      if ((pending & 1L << i) != 0) {
+        int s = stashSize > 0 ? findInStash(keys[from + i]) : -1;
+        batchEntries[i] = s >= 0 ? stash[s] : null;
+      }
+    }
+  }
+
   private SimpleEntry<K, V> findInternal(Object key) {
-    int h1 = hash1(key);
-    SimpleEntry<K, V> e1 = tables[0][indexFor(h1)];
-    if (e1 != null && e1.getKey().equals(key)) {
-      return e1;
+    long h = hasher.hash(key);
+    for (int t = 0; t < tablesCount; t++) {
+      SimpleEntry<K, V> e = tables[t][indexFor(h, t)];
+      if (e != null && e.getKey().equals(key)) {
+        return e;
+      }
     }
 
-    int h2 = hash2(key);
-    SimpleEntry<K, V> e2 = tables[1][indexFor(h2)];
-    if (e2 != null && e2.getKey().equals(key)) {
-      return e2;
+    if (stashSize > 0) {
+      int s = findInStash(key);
+      if (s >= 0) {
+        return stash[s];
+      }
     }
 
     return null;
   }
 
+  /**
+   * @return an immutable copy of the map that reads exactly two slots per lookup, see
+   * {@link FrozenCuckooHashMap}; a map with two tables and an empty stash is copied without
+   * rehashing
+   */
+  public FrozenCuckooHashMap<K, V> freeze() {
+    if (tablesCount == 2 && stashSize == 0) {
+      return new FrozenCuckooHashMap<K, V>(this);
+    }
+    return FrozenCuckooHashMap.copyOf(this);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public void clear() {
+    for (SimpleEntry<K, V>[] table : tables) {
+      Arrays.fill(table, null);
+    }
+    Arrays.fill(stash, null);
+    stashSize = 0;
+    size = 0;
+    modCount++;
+  }
+
   @Override
   public Set<Entry<K, V>> entrySet() {
-    return null;
+    return new EntrySet();
   }
 
-  int hash1(Object key) {
-    int h = key.hashCode();
+  private final class EntrySet extends AbstractSet<Entry<K, V>> {
+
+    @Override
+    public Iterator<Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) o;
+      SimpleEntry<K, V> entry = findInternal(e.getKey());
+      return entry != null && entry.equals(e);
+    }
 
-    return h ^ (h >>> 16);
+    @Override
+    public boolean remove(Object o) {
+      if (!contains(o)) {
+        return false;
+      }
+      NotThreadSafeCuckooHashMap.this.remove(((Entry<?, ?>) o).getKey());
+      return true;
+    }
 
+    @Override
+    public void clear() {
+      NotThreadSafeCuckooHashMap.this.clear();
+    }
   }
 
-  int hash2(Object key) {
-    int h = key.hashCode();
+  /**
+   * Returns the entries of each table in turn and then the ones in the stash. Fails if the map is
+   * modified other than through the iterator, since a new key can move entries around.
+   */
+  private final class EntryIterator implements Iterator<Entry<K, V>> {
+
+    private int expectedModCount = modCount;
+
+    private int table;
+    private int index;
+
+    private int lastTable = -1;
+    private int lastIndex;
+
+    EntryIterator() {
+      skipEmpty();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return table <= tablesCount;
+    }
+
+    @Override
+    public Entry<K, V> next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      lastTable = table;
+      lastIndex = index;
+      index++;
+      skipEmpty();
+
+      return lastTable < tablesCount ? tables[lastTable][lastIndex] : stash[lastIndex];
+    }
+
+    @Override
+    public void remove() {
+      if (lastTable < 0) {
+        throw new IllegalStateException();
+      }
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+
+      if (lastTable < tablesCount) {
+        tables[lastTable][lastIndex] = null;
+      } else {
+        // the last entry of the stash takes the place of the removed one
+        removeFromStash(lastIndex);
+        index = lastIndex;
+      }
+      size--;
+      expectedModCount = ++modCount;
+      lastTable = -1;
+    }
 
-    h ^= (h >>> 20) ^ (h >>> 12);
-    return h ^ (h >>> 7) ^ (h >>> 4);
+    /**
+     * Moves to the next entry, the stash being the table after the last one.
+     */
+    private void skipEmpty() {
+      while (table < tablesCount) {
+        while (index < capacity) {
+          if (tables[table][index] != null) {
+            return;
+          }
+          index++;
+        }
+        table++;
+        index = 0;
+      }
+      if (table == tablesCount && index >= stashSize) {
+        table++;
+      }
+    }
+  }
+
+  /**
+   * @return index in the given table for a key with the given 64-bit hash
+   */
+  int indexFor(long hash, int table) {
+    return indexFor(Hasher.tableHash(hash, table));
   }
 
   int indexFor(int h) {
     return h & (capacity - 1);
   }
 
+  static int tableSizeFor(int capacity) {
+    int n = 1;
+    while (n < capacity && n < MAXIMUM_CAPACITY) {
+      n <<= 1;
+    }
+    return n;
+  }
 
 }
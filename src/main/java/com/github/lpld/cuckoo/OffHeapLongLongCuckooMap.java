@@ -0,0 +1,536 @@
+package com.github.lpld.cuckoo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.isMarked;
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.mark;
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.timestamp;
+import static com.github.lpld.cuckoo.ThreadSafeCuckooHashMap.updateTimestamp;
+
+/**
+ * Thread-safe cuckoo hash map from {@code long} keys to {@code long} values that keeps its tables
+ * outside of the Java heap, in direct byte buffers. However large the map grows, the garbage
+ * collector only sees a handful of objects.
+ *
+ * <p>Each slot is {@value #SLOT_SIZE} bytes: the flags word, with the same mark bit and timestamp
+ * as {@link ThreadSafeCuckooHashMap}, followed by the key and the value. Writers are serialized
+ * by a lock. A writer marks a slot before changing it, and unmarks it and increments its
+ * timestamp afterwards. Readers take no lock. They retry a slot if it was marked or its timestamp
+ * changed while they read it, and report a key as missing only if the first slot hasn't changed
+ * while they were looking into the second one, since the key could have been moved between them.
+ *
+ * <p>A slot is empty when its key is {@code 0}; the key {@code 0} itself is kept in a separate
+ * control block together with the number of entries. Missing keys are reported with
+ * {@link #noEntryValue()}.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class OffHeapLongLongCuckooMap {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final float DEFAULT_MAX_LOAD_FACTOR = 0.5f;
+  private static final int TABLES_COUNT = 2;
+
+  static final int FLAGS_OFFSET = 0;
+  static final int KEY_OFFSET = 8;
+  static final int VALUE_OFFSET = 16;
+  static final int SLOT_SIZE = 24;
+
+  /**
+   * Size of the control block: the number of entries, followed by the slot of the key
+   * {@link #EMPTY}, whose key field is 1 if the key is present.
+   */
+  static final int CONTROL_SIZE = 32;
+  static final int SIZE_OFFSET = 0;
+  static final int EMPTY_KEY_SLOT_OFFSET = 8;
+
+  /**
+   * Largest power of two of slots that still fits into a single byte buffer.
+   */
+  private static final int MAXIMUM_CAPACITY = 1 << 26;
+
+  static final long EMPTY = 0;
+
+  static final VarHandle INTS =
+      MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+  static final VarHandle LONGS =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  int MAX_ROUTE = 10;
+  int MAX_SEARCH_NODES = 256;
+
+  volatile Tables tables;
+
+  /**
+   * See {@link #CONTROL_SIZE}.
+   */
+  final ByteBuffer control;
+  private final ByteBuffer emptyKeySlot;
+
+  private final float maxLoadFactor;
+  private final long noEntryValue;
+
+  /**
+   * Whether the tables may be rebuilt with a larger capacity when a key doesn't fit.
+   */
+  private final boolean growable;
+
+  final ReentrantLock writeLock = new ReentrantLock();
+  private CuckooPath path;
+
+  public OffHeapLongLongCuckooMap(int capacity, float maxLoadFactor, long noEntryValue) {
+    this(allocate(CONTROL_SIZE), newTables(capacity), maxLoadFactor, noEntryValue, true);
+  }
+
+  OffHeapLongLongCuckooMap(ByteBuffer control, Tables tables, float maxLoadFactor,
+                           long noEntryValue, boolean growable) {
+    if (!(maxLoadFactor > 0 && maxLoadFactor <= 1)) {
+      throw new IllegalArgumentException("Illegal load factor: " + maxLoadFactor);
+    }
+
+    this.control = control;
+    this.emptyKeySlot = slice(control, EMPTY_KEY_SLOT_OFFSET, SLOT_SIZE);
+    this.tables = tables;
+    this.maxLoadFactor = maxLoadFactor;
+    this.noEntryValue = noEntryValue;
+    this.growable = growable;
+  }
+
+  private static Tables newTables(int capacity) {
+    if (capacity < 0 || capacity > MAXIMUM_CAPACITY) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    return new Tables(NotThreadSafeCuckooHashMap.tableSizeFor(capacity),
+                      ThreadLocalRandom.current().nextLong());
+  }
+
+  public OffHeapLongLongCuckooMap(int capacity) {
+    this(capacity, DEFAULT_MAX_LOAD_FACTOR, 0);
+  }
+
+  public OffHeapLongLongCuckooMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @return value that {@link #get}, {@link #put} and {@link #remove} return for a missing key
+   */
+  public long noEntryValue() {
+    return noEntryValue;
+  }
+
+  public long get(long key) {
+    if (key == EMPTY) {
+      return readEmptyKey();
+    }
+
+    Tables t = tables;
+    long h = t.hash(key);
+    ByteBuffer b1 = t.buffers[0];
+    ByteBuffer b2 = t.buffers[1];
+    int o1 = t.indexFor(h, 0) * SLOT_SIZE;
+    int o2 = t.indexFor(h, 1) * SLOT_SIZE;
+
+    while (true) {
+      int f1 = awaitUnmarked(b1, o1);
+      long k1 = (long) LONGS.get(b1, o1 + KEY_OFFSET);
+      long v1 = (long) LONGS.get(b1, o1 + VALUE_OFFSET);
+      if (!unchanged(b1, o1, f1)) {
+        continue;
+      }
+      if (k1 == key) {
+        return v1;
+      }
+
+      int f2 = awaitUnmarked(b2, o2);
+      long k2 = (long) LONGS.get(b2, o2 + KEY_OFFSET);
+      long v2 = (long) LONGS.get(b2, o2 + VALUE_OFFSET);
+      if (!unchanged(b2, o2, f2)) {
+        continue;
+      }
+      if (k2 == key) {
+        return v2;
+      }
+
+      // the key could have been moved from the second slot to the first one in the meantime
+      if (unchanged(b1, o1, f1)) {
+        return noEntryValue;
+      }
+    }
+  }
+
+  public boolean containsKey(long key) {
+    if (key == EMPTY) {
+      return (long) LONGS.getAcquire(emptyKeySlot, KEY_OFFSET) != 0;
+    }
+
+    Tables t = tables;
+    long h = t.hash(key);
+    ByteBuffer b1 = t.buffers[0];
+    ByteBuffer b2 = t.buffers[1];
+    int o1 = t.indexFor(h, 0) * SLOT_SIZE;
+    int o2 = t.indexFor(h, 1) * SLOT_SIZE;
+
+    while (true) {
+      int f1 = awaitUnmarked(b1, o1);
+      if ((long) LONGS.getAcquire(b1, o1 + KEY_OFFSET) == key
+          || (long) LONGS.getAcquire(b2, o2 + KEY_OFFSET) == key) {
+        return true;
+      }
+      if (unchanged(b1, o1, f1)) {
+        return false;
+      }
+    }
+  }
+
+  private long readEmptyKey() {
+    while (true) {
+      int f = awaitUnmarked(emptyKeySlot, 0);
+      long present = (long) LONGS.get(emptyKeySlot, KEY_OFFSET);
+      long value = (long) LONGS.get(emptyKeySlot, VALUE_OFFSET);
+      if (unchanged(emptyKeySlot, 0, f)) {
+        return present != 0 ? value : noEntryValue;
+      }
+    }
+  }
+
+  /**
+   * @return previous value for the key, or {@link #noEntryValue()} if there was none
+   */
+  public long put(long key, long value) {
+    writeLock.lock();
+    try {
+      beginUpdate();
+
+      if (key == EMPTY) {
+        long old = readEmptyKey();
+        if ((long) LONGS.get(emptyKeySlot, KEY_OFFSET) == 0) {
+          addSize(1);
+        }
+        write(emptyKeySlot, 0, 1, value);
+        return old;
+      }
+
+      int slot = find(key);
+      if (slot >= 0) {
+        ByteBuffer b = tables.buffers[slot & 1];
+        int offset = (slot >>> 1) * SLOT_SIZE;
+        long old = (long) LONGS.get(b, offset + VALUE_OFFSET);
+        write(b, offset, key, value);
+        return old;
+      }
+
+      if (growable && size() + 1 > maxLoadFactor * TABLES_COUNT * tables.capacity) {
+        rehash(tables.capacity << 1);
+      }
+
+      while (!insert(tables, key, value)) {
+        if (!growable) {
+          throw new IllegalStateException("No room for key " + key + ", the table is full");
+        }
+        rehash(tables.capacity << 1);
+      }
+      addSize(1);
+
+      return noEntryValue;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @return removed value, or {@link #noEntryValue()} if there was no value for the key
+   */
+  public long remove(long key) {
+    writeLock.lock();
+    try {
+      if (key == EMPTY) {
+        if ((long) LONGS.get(emptyKeySlot, KEY_OFFSET) == 0) {
+          return noEntryValue;
+        }
+        beginUpdate();
+        long old = (long) LONGS.get(emptyKeySlot, VALUE_OFFSET);
+        write(emptyKeySlot, 0, 0, 0);
+        addSize(-1);
+        return old;
+      }
+
+      int slot = find(key);
+      if (slot < 0) {
+        return noEntryValue;
+      }
+
+      ByteBuffer b = tables.buffers[slot & 1];
+      int offset = (slot >>> 1) * SLOT_SIZE;
+      beginUpdate();
+      long old = (long) LONGS.get(b, offset + VALUE_OFFSET);
+      write(b, offset, EMPTY, 0);
+      addSize(-1);
+
+      return old;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  public int size() {
+    return (int) (long) LONGS.getVolatile(control, SIZE_OFFSET);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  private void addSize(int delta) {
+    LONGS.setVolatile(control, SIZE_OFFSET, (long) LONGS.get(control, SIZE_OFFSET) + delta);
+  }
+
+  /**
+   * Called with the write lock held before the map is changed.
+   */
+  void beginUpdate() {
+  }
+
+  /**
+   * Sets the maximum number of entries that may be displaced to make room for a new one.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < TABLES_COUNT) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  /**
+   * Must be called with the write lock held.
+   *
+   * @return slot of the key, encoded as {@code index << 1 | table}, or -1 if there is none
+   */
+  private int find(long key) {
+    Tables t = tables;
+    long h = t.hash(key);
+    for (int table = 0; table < TABLES_COUNT; table++) {
+      int idx = t.indexFor(h, table);
+      if ((long) LONGS.get(t.buffers[table], idx * SLOT_SIZE + KEY_OFFSET) == key) {
+        return idx << 1 | table;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Puts a key that is not in the map yet. Must be called with the write lock held.
+   *
+   * @return false if there is a cuckoo cycle and the tables have to be rehashed
+   */
+  private boolean insert(Tables t, long key, long value) {
+    long h = t.hash(key);
+    int idx1 = t.indexFor(h, 0);
+    int idx2 = t.indexFor(h, 1);
+
+    if (t.key(0, idx1) == EMPTY) {
+      write(t.buffers[0], idx1 * SLOT_SIZE, key, value);
+    } else if (t.key(1, idx2) == EMPTY) {
+      write(t.buffers[1], idx2 * SLOT_SIZE, key, value);
+    } else {
+      int root = relocate(t, idx1, idx2);
+      if (root < 0) {
+        return false;
+      }
+      write(t.buffers[path.table(root)], path.position(root) * SLOT_SIZE, key, value);
+    }
+
+    return true;
+  }
+
+  /**
+   * Searches breadth-first for the shortest cuckoo path starting from one of the two slots of a
+   * key, and moves the entries along it.
+   *
+   * @return root node of the path, whose slot is now free, or -1 if no path was found within
+   * {@link #MAX_ROUTE} moves and {@link #MAX_SEARCH_NODES} examined slots
+   */
+  private int relocate(Tables t, int idx1, int idx2) {
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+    }
+
+    path.clear();
+    path.add(0, idx1, -1);
+    path.add(1, idx2, -1);
+
+    while (path.hasNext()) {
+      int node = path.next();
+      if (path.depth(node) >= MAX_ROUTE) {
+        return -1;
+      }
+
+      int table = path.table(node);
+      long key = t.key(table, path.position(node));
+
+      int destTable = 1 - table;
+      int destIndex = t.indexFor(t.hash(key), destTable);
+      if (path.onBranch(node, destTable, destIndex)) {
+        continue;
+      }
+
+      int child = path.add(destTable, destIndex, node);
+      if (child < 0) {
+        return -1;
+      }
+
+      if (t.key(destTable, destIndex) == EMPTY) {
+        return move(t, child);
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves each entry on the branch one step down, starting from the free slot at {@code node}.
+   * An entry is written to its new slot before its old slot is overwritten, so a reader that
+   * misses it in both slots sees the timestamp of one of them change and looks again.
+   */
+  private int move(Tables t, int node) {
+    int parent;
+    while ((parent = path.parent(node)) >= 0) {
+      ByteBuffer from = t.buffers[path.table(parent)];
+      int offset = path.position(parent) * SLOT_SIZE;
+      write(t.buffers[path.table(node)], path.position(node) * SLOT_SIZE,
+            (long) LONGS.get(from, offset + KEY_OFFSET),
+            (long) LONGS.get(from, offset + VALUE_OFFSET));
+      node = parent;
+    }
+    return node;
+  }
+
+  /**
+   * Builds new tables with the given capacity and a new seed, growing them further if the
+   * entries still don't fit, and publishes them to the readers. Readers that are still looking
+   * into the old tables see them as they were just before the switch.
+   */
+  private void rehash(int newCapacity) {
+    Tables old = tables;
+
+    while (true) {
+      if (newCapacity > MAXIMUM_CAPACITY) {
+        throw new IllegalStateException("Maximum capacity reached");
+      }
+
+      Tables t = new Tables(newCapacity, ThreadLocalRandom.current().nextLong());
+      if (reinsert(old, t)) {
+        tables = t;
+        return;
+      }
+
+      newCapacity <<= 1;
+    }
+  }
+
+  private boolean reinsert(Tables from, Tables to) {
+    for (int table = 0; table < TABLES_COUNT; table++) {
+      for (int i = 0; i < from.capacity; i++) {
+        long key = from.key(table, i);
+        long value = (long) LONGS.get(from.buffers[table], i * SLOT_SIZE + VALUE_OFFSET);
+        if (key != EMPTY && !insert(to, key, value)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes a slot, marking it for the duration of the write and incrementing its timestamp.
+   * Must be called with the write lock held.
+   */
+  static void write(ByteBuffer b, int offset, long key, long value) {
+    int f = (int) INTS.get(b, offset + FLAGS_OFFSET);
+    INTS.setOpaque(b, offset + FLAGS_OFFSET, mark(f));
+    VarHandle.releaseFence();
+
+    LONGS.set(b, offset + KEY_OFFSET, key);
+    LONGS.set(b, offset + VALUE_OFFSET, value);
+
+    INTS.setRelease(b, offset + FLAGS_OFFSET, updateTimestamp(f, timestamp(f) + 1));
+  }
+
+  private static int awaitUnmarked(ByteBuffer b, int offset) {
+    int f;
+    while (isMarked(f = (int) INTS.getAcquire(b, offset + FLAGS_OFFSET))) {
+      Thread.onSpinWait();
+    }
+    return f;
+  }
+
+  /**
+   * @return true if the slot hasn't been written since its flags were {@code f}
+   */
+  private static boolean unchanged(ByteBuffer b, int offset, int f) {
+    VarHandle.acquireFence();
+    return (int) INTS.getAcquire(b, offset + FLAGS_OFFSET) == f;
+  }
+
+  private static ByteBuffer allocate(int bytes) {
+    return ByteBuffer.allocateDirect(bytes + Long.BYTES).alignedSlice(Long.BYTES);
+  }
+
+  static ByteBuffer slice(ByteBuffer b, int offset, int length) {
+    ByteBuffer d = b.duplicate();
+    d.position(offset).limit(offset + length);
+    return d.slice();
+  }
+
+  /**
+   * The two tables, each in its own direct buffer, and the seed of their hash function.
+   */
+  static final class Tables {
+
+    final int capacity;
+    final long seed;
+    final ByteBuffer[] buffers;
+
+    Tables(int capacity, long seed) {
+      this(capacity, seed, allocate(capacity * SLOT_SIZE), allocate(capacity * SLOT_SIZE));
+    }
+
+    Tables(int capacity, long seed, ByteBuffer table0, ByteBuffer table1) {
+      this.capacity = capacity;
+      this.seed = seed;
+      this.buffers = new ByteBuffer[]{table0, table1};
+    }
+
+    long hash(long key) {
+      return SeededHasher.mix(seed ^ key);
+    }
+
+    /**
+     * @return index in the given table for a key with the given 64-bit hash
+     */
+    int indexFor(long hash, int table) {
+      int h = table == 0 ? (int) hash : (int) (hash >>> 32);
+      return h & (capacity - 1);
+    }
+
+    long key(int table, int index) {
+      return (long) LONGS.get(buffers[table], index * SLOT_SIZE + KEY_OFFSET);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.github.lpld.cuckoo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Entries that writers relocate while an iterator scans the slots of a concurrent map, so that
+ * the iterator returns each of them exactly once although it may find it in two slots, or in
+ * none. Only the keys of relocated entries are remembered, so the iterator takes memory in
+ * proportion to the relocations made during the scan, not to the size of the map.
+ *
+ * <p>A writer adds an entry before copying it to another slot, or to another table, while it is
+ * still in the slot it leaves. The iterator processes the relocations by {@link #drain} after
+ * reading each slot, so a slot that it had scanned before the previous slot was read, was read
+ * before the relocation. The first relocation of an entry that has been in the map since the
+ * scan started then tells whether the scan has found it: it has if the slot that the entry left
+ * had been scanned. Otherwise the entry is looked for in the slots that remain, and returned at
+ * the end of the scan if it wasn't found there.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+abstract class RelocationLog<E> {
+
+  /**
+   * Returned by {@link #scanned} for tables whose relocations don't concern the iterator.
+   */
+  static final int IGNORED = -1;
+
+  /**
+   * State of a relocated key whose entry has been returned.
+   */
+  private static final Object RETURNED = new Object();
+
+  private final Queue<Relocation<E>> relocations = new ConcurrentLinkedQueue<Relocation<E>>();
+
+  /**
+   * Relocated keys, each mapped to {@link #RETURNED} or to the entry that the scan hasn't found.
+   */
+  private final Map<Object, Object> relocated = new HashMap<Object, Object>();
+
+  private Iterator<Object> rest;
+
+  /**
+   * Adds a relocation. Called by writers, before the entry leaves its slot.
+   */
+  void add(Relocation<E> relocation) {
+    relocations.add(relocation);
+  }
+
+  /**
+   * @return number of slots of the tables that the scan has read, in the order in which it reads
+   * them, {@link Integer#MAX_VALUE} if it has read all of them, or {@link #IGNORED}
+   */
+  abstract int scanned(Object tables);
+
+  /**
+   * Processes the relocations added since the last call. Called by the iterator after reading a
+   * slot, and before it is counted by {@link #scanned}.
+   */
+  void drain() {
+    Relocation<E> r;
+    while ((r = relocations.poll()) != null) {
+      if (!relocated.containsKey(r.key)) {
+        int scanned = scanned(r.tables);
+        if (scanned != IGNORED) {
+          relocated.put(r.key, r.from < scanned ? RETURNED : r.entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Called when the scan has found a live entry of the key.
+   *
+   * @return false if the entry of the key has already been returned
+   */
+  boolean take(Object key) {
+    if (relocated.isEmpty()) {
+      return true;
+    }
+    Object state = relocated.get(key);
+    if (state == RETURNED) {
+      return false;
+    }
+    if (state != null) {
+      relocated.put(key, RETURNED);
+    }
+    return true;
+  }
+
+  /**
+   * Called when the scan has found a live entry of the key that may be found in another slot as
+   * well, because it is being moved by a relocation that isn't in the log, or has been left in
+   * both slots.
+   *
+   * @param scanned whether the entry is also in a slot that has been scanned, and has therefore
+   *                been found there
+   * @return false if the entry of the key has already been returned
+   */
+  boolean takeMoving(Object key, boolean scanned) {
+    Object state = relocated.put(key, RETURNED);
+    return state == null ? !scanned : state != RETURNED;
+  }
+
+  /**
+   * Called once the scan is over, when no more relocations are processed.
+   *
+   * @return next relocated entry that the scan hasn't found, or {@code null} if there is none
+   */
+  @SuppressWarnings("unchecked")
+  E poll() {
+    if (rest == null) {
+      rest = relocated.values().iterator();
+    }
+    while (rest.hasNext()) {
+      Object state = rest.next();
+      if (state != RETURNED) {
+        return (E) state;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * An entry leaving a slot, shared by the logs of all iterators.
+   */
+  static final class Relocation<E> {
+
+    final Object tables;
+    final Object key;
+    final E entry;
+
+    /**
+     * Slot that the entry leaves, in the order in which iterators scan the tables.
+     */
+    final int from;
+
+    Relocation(Object tables, Object key, E entry, int from) {
+      this.tables = tables;
+      this.key = key;
+      this.entry = entry;
+      this.from = from;
+    }
+  }
+}
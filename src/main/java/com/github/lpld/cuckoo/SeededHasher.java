@@ -0,0 +1,71 @@
+package com.github.lpld.cuckoo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Default {@link Hasher}: mixes the seed and the key's hash code with the 64-bit finalizer of
+ * MurmurHash3.
+ *
+ * <p>Keys with equal hash codes would still share both of their slots, so {@link CharSequence}
+ * keys, which are the usual target of hash-flooding, are hashed by their content instead of
+ * {@link Object#hashCode()}. Other key types with colliding hash codes need a custom hasher.
+ *
+ * <p>Hashing the content has a cost: every {@code get}, {@code put} and {@code remove} of a
+ * {@link CharSequence} key reads all of its characters, where {@link String#hashCode()} is
+ * computed once and cached in the string. For long string keys that come from trusted input, a
+ * hasher that mixes the seed with {@code hashCode()} is faster.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public final class SeededHasher implements Hasher {
+
+  private static final long FNV_PRIME = 0x100000001B3L;
+
+  private final long seed;
+
+  public SeededHasher(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Creates a hasher with a random seed.
+   */
+  public SeededHasher() {
+    this(ThreadLocalRandom.current().nextLong());
+  }
+
+  @Override
+  public long hash(Object key) {
+    if (key instanceof CharSequence) {
+      // O(length) on every call, unlike the cached String.hashCode(), but a seed that an
+      // attacker doesn't know makes the hashes of any two distinct strings unpredictable
+      CharSequence s = (CharSequence) key;
+
+      long h = seed ^ s.length();
+      for (int i = 0; i < s.length(); i++) {
+        h = (h ^ s.charAt(i)) * FNV_PRIME;
+      }
+      return mix(h);
+    }
+
+    return mix(seed ^ key.hashCode());
+  }
+
+  @Override
+  public Hasher withSeed(long seed) {
+    return new SeededHasher(seed);
+  }
+
+  /**
+   * MurmurHash3 64-bit finalizer: every bit of the input affects every bit of the result.
+   */
+  static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
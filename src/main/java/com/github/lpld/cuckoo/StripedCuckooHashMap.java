@@ -0,0 +1,917 @@
+package com.github.lpld.cuckoo;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Concurrent set-associative cuckoo hash map with striped locks, as in libcuckoo.
+ *
+ * <p>The buckets are laid out as in {@link BucketizedCuckooHashMap}. Each bucket is guarded by
+ * one of a fixed number of {@link StampedLock}s, chosen by the low bits of the bucket's index. A
+ * writer locks the stripes of the two buckets of its key, so that writers of different stripes
+ * never wait for each other. A cuckoo path is searched without any locks, and then each entry on
+ * it is moved with the stripes of its old and its new bucket locked; if the path has changed in
+ * the meantime, a new one is searched.
+ *
+ * <p>Readers don't lock anything: they use the stamps of the two stripes of a key as sequence
+ * locks, reading the buckets optimistically and starting over if a writer has locked either
+ * stripe in the meantime. After a few failed attempts a reader takes the read locks, so that a
+ * burst of writes can't starve it.
+ *
+ * <p>When no cuckoo path is found, or the tables get full, the map locks all stripes and rehashes
+ * the entries into tables twice as large.
+ *
+ * @author leopold
+ * @since 3/02/15
+ */
+public class StripedCuckooHashMap<K, V> extends AbstractConcurrentCuckooMap<K, V> {
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final int DEFAULT_SLOTS_PER_BUCKET = 4;
+  private static final int DEFAULT_STRIPES = 64;
+  private static final float MAX_LOAD_FACTOR = 0.9f;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+  private static final int TABLES_COUNT = 2;
+
+  /**
+   * Number of times a lookup reads the buckets of a key optimistically before it takes the read
+   * locks.
+   */
+  private static final int OPTIMISTIC_READS = 4;
+
+  /**
+   * Search tree reused by all relocations made by a thread.
+   */
+  private static final ThreadLocal<CuckooPath> PATH = new ThreadLocal<CuckooPath>();
+
+  final int slotsPerBucket;
+
+  int MAX_ROUTE = 5;
+  int MAX_SEARCH_NODES = 2048;
+
+  /**
+   * Locks of the stripes. The buckets with the same index in both tables share a stripe.
+   */
+  private final StampedLock[] stripes;
+
+  volatile Table current;
+
+  /**
+   * Logs of the iterators that are scanning the tables, to which the key of each relocated entry
+   * is added, see {@link EntryIterator}.
+   */
+  private final CopyOnWriteArrayList<WeakReference<RelocationLog<Object>>> relocationLogs =
+      new CopyOnWriteArrayList<WeakReference<RelocationLog<Object>>>();
+
+  private final LongAdder count = new LongAdder();
+
+  /**
+   * @param capacity number of buckets in each table, at least the number of stripes
+   * @param stripes  number of locks, rounded up to a power of two
+   */
+  public StripedCuckooHashMap(int capacity, int slotsPerBucket, int stripes, Hasher hasher) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Illegal capacity: " + capacity);
+    }
+    if (slotsPerBucket < 1) {
+      throw new IllegalArgumentException("Illegal number of slots per bucket: " + slotsPerBucket);
+    }
+    if (stripes < 1) {
+      throw new IllegalArgumentException("Illegal number of stripes: " + stripes);
+    }
+
+    this.slotsPerBucket = slotsPerBucket;
+    this.MAX_SEARCH_NODES = Math.max(MAX_SEARCH_NODES, TABLES_COUNT * slotsPerBucket);
+
+    // the stripe of a bucket then doesn't depend on the capacity of the tables
+    stripes = NotThreadSafeCuckooHashMap.tableSizeFor(stripes);
+    this.stripes = new StampedLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new StampedLock();
+    }
+
+    int buckets = Math.max(NotThreadSafeCuckooHashMap.tableSizeFor(capacity), stripes);
+    this.current = new Table(buckets, slotsPerBucket, hasher);
+  }
+
+  public StripedCuckooHashMap(int capacity, int slotsPerBucket) {
+    this(capacity, slotsPerBucket, DEFAULT_STRIPES, new SeededHasher());
+  }
+
+  public StripedCuckooHashMap(int capacity) {
+    this(capacity, DEFAULT_SLOTS_PER_BUCKET);
+  }
+
+  public StripedCuckooHashMap() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V put(K key, V value) {
+    checkNotNull(key, value);
+    boolean relocated = false;
+
+    while (true) {
+      Table t = current;
+      long h = t.hasher.hash(key);
+      int b0 = t.bucketFor(h, 0);
+      int b1 = t.bucketFor(h, 1);
+      int s0 = stripeFor(b0);
+      int s1 = stripeFor(b1);
+
+      lock(s0, s1);
+      try {
+        if (t != current) {
+          continue;
+        }
+
+        int pos = t.find(0, b0, key);
+        if (pos >= 0) {
+          return (V) t.values[0].getAndSet(pos, value);
+        }
+        pos = t.find(1, b1, key);
+        if (pos >= 0) {
+          return (V) t.values[1].getAndSet(pos, value);
+        }
+
+        if (t.store(0, b0, key, value) || t.store(1, b1, key, value)) {
+          count.increment();
+          break;
+        }
+      } finally {
+        unlock(s0, s1);
+      }
+
+      if (relocate(t, h)) {
+        relocated = true;
+      } else {
+        grow(t);
+      }
+    }
+
+    // the load is only checked once the buckets of a key were full, see ThreadSafeCuckooHashMap
+    Table t = current;
+    if (relocated
+        && mappingCount() > MAX_LOAD_FACTOR * TABLES_COUNT * t.capacity * slotsPerBucket) {
+      grow(t);
+    }
+    return null;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(Object key) {
+    while (true) {
+      Table t = current;
+      long h = t.hasher.hash(key);
+      int b0 = t.bucketFor(h, 0);
+      int b1 = t.bucketFor(h, 1);
+      int s0 = stripeFor(b0);
+      int s1 = stripeFor(b1);
+
+      lock(s0, s1);
+      try {
+        if (t != current) {
+          continue;
+        }
+
+        int table = 0;
+        int pos = t.find(0, b0, key);
+        if (pos < 0) {
+          table = 1;
+          pos = t.find(1, b1, key);
+        }
+        if (pos < 0) {
+          return null;
+        }
+
+        t.keys[table].set(pos, null);
+        count.decrement();
+        return (V) t.values[table].getAndSet(pos, null);
+      } finally {
+        unlock(s0, s1);
+      }
+    }
+  }
+
+  /**
+   * Applies the remapping with the stripes of the key locked. It is applied to an absent key only
+   * once there is room for the key, so that it doesn't have to be applied again after a
+   * relocation.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  V update(K key, Remapping<K, V> remapping) {
+    boolean relocated = false;
+    V value;
+
+    while (true) {
+      Table t = current;
+      long h = t.hasher.hash(key);
+      int b0 = t.bucketFor(h, 0);
+      int b1 = t.bucketFor(h, 1);
+      int s0 = stripeFor(b0);
+      int s1 = stripeFor(b1);
+
+      lock(s0, s1);
+      try {
+        if (t != current) {
+          continue;
+        }
+
+        int table = 0;
+        int pos = t.find(0, b0, key);
+        if (pos < 0) {
+          table = 1;
+          pos = t.find(1, b1, key);
+        }
+
+        if (pos >= 0) {
+          V old = (V) t.values[table].get(pos);
+          value = remapping.remap(key, old);
+          if (value == null) {
+            t.keys[table].set(pos, null);
+            t.values[table].set(pos, null);
+            count.decrement();
+          } else if (value != old) {
+            t.values[table].set(pos, value);
+          }
+          return value;
+        }
+
+        if (t.freeSlot(0, b0) >= 0 || t.freeSlot(1, b1) >= 0) {
+          value = remapping.remap(key, null);
+          if (value == null) {
+            return null;
+          }
+          if (!t.store(0, b0, key, value)) {
+            t.store(1, b1, key, value);
+          }
+          count.increment();
+          break;
+        }
+      } finally {
+        unlock(s0, s1);
+      }
+
+      if (relocate(t, h)) {
+        relocated = true;
+      } else {
+        grow(t);
+      }
+    }
+
+    Table t = current;
+    if (relocated
+        && mappingCount() > MAX_LOAD_FACTOR * TABLES_COUNT * t.capacity * slotsPerBucket) {
+      grow(t);
+    }
+    return value;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+      Table t = current;
+      long h = t.hasher.hash(key);
+      int b0 = t.bucketFor(h, 0);
+      int b1 = t.bucketFor(h, 1);
+      StampedLock l0 = stripes[stripeFor(b0)];
+      StampedLock l1 = stripes[stripeFor(b1)];
+
+      long stamp0 = l0.tryOptimisticRead();
+      long stamp1 = l1.tryOptimisticRead();
+      // the tables may have been replaced before the stamps were taken
+      if (stamp0 == 0 || stamp1 == 0 || t != current) {
+        continue;
+      }
+
+      Object value = t.lookup(key, b0, b1);
+      if (l0.validate(stamp0) && l1.validate(stamp1)) {
+        return (V) value;
+      }
+    }
+
+    while (true) {
+      Table t = current;
+      long h = t.hasher.hash(key);
+      int b0 = t.bucketFor(h, 0);
+      int b1 = t.bucketFor(h, 1);
+      int s0 = stripeFor(b0);
+      int s1 = stripeFor(b1);
+
+      readLock(s0, s1);
+      try {
+        if (t == current) {
+          return (V) t.lookup(key, b0, b1);
+        }
+      } finally {
+        unlockRead(s0, s1);
+      }
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.min(mappingCount(), Integer.MAX_VALUE);
+  }
+
+  @Override
+  public long mappingCount() {
+    // a remove can be counted before the put of the same entry
+    return Math.max(count.sum(), 0);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return mappingCount() == 0;
+  }
+
+  @Override
+  public void clear() {
+    lockAll();
+    try {
+      Table t = current;
+      for (int i = 0; i < TABLES_COUNT; i++) {
+        for (int pos = 0; pos < t.keys[i].length(); pos++) {
+          t.keys[i].set(pos, null);
+          t.values[i].set(pos, null);
+        }
+      }
+      count.reset();
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * Sets the maximum number of entries that may be displaced to make room for a new one. Must be
+   * called before the map is shared between threads.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path. Must be called
+   * before the map is shared between threads.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < TABLES_COUNT * slotsPerBucket) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  private int stripeFor(int bucket) {
+    return bucket & (stripes.length - 1);
+  }
+
+  /**
+   * Locks the stripes of two buckets for writing, in the order of their indexes so that two
+   * writers can't wait for each other.
+   */
+  private void lock(int s0, int s1) {
+    stripes[Math.min(s0, s1)].writeLock();
+    if (s0 != s1) {
+      stripes[Math.max(s0, s1)].writeLock();
+    }
+  }
+
+  private void unlock(int s0, int s1) {
+    stripes[s0].tryUnlockWrite();
+    if (s0 != s1) {
+      stripes[s1].tryUnlockWrite();
+    }
+  }
+
+  private void readLock(int s0, int s1) {
+    stripes[Math.min(s0, s1)].readLock();
+    if (s0 != s1) {
+      stripes[Math.max(s0, s1)].readLock();
+    }
+  }
+
+  private void unlockRead(int s0, int s1) {
+    stripes[s0].tryUnlockRead();
+    if (s0 != s1) {
+      stripes[s1].tryUnlockRead();
+    }
+  }
+
+  private void lockAll() {
+    for (StampedLock stripe : stripes) {
+      stripe.writeLock();
+    }
+  }
+
+  private void unlockAll() {
+    for (int i = stripes.length - 1; i >= 0; i--) {
+      stripes[i].tryUnlockWrite();
+    }
+  }
+
+  private CuckooPath path() {
+    CuckooPath path = PATH.get();
+    if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+      path = new CuckooPath(MAX_SEARCH_NODES);
+      PATH.set(path);
+    }
+    return path;
+  }
+
+  /**
+   * Frees a slot in one of the buckets of a key by moving the entries along the shortest cuckoo
+   * path. The path is searched without locks, and only then the entries are moved one by one
+   * starting from the free end. If the path changes in the meantime, a new one is searched.
+   *
+   * @return false if no path was found
+   */
+  private boolean relocate(Table t, long h) {
+    CuckooPath path = path();
+
+    while (t == current) {
+      int node = findPath(t, path, h);
+      if (node < 0) {
+        return false;
+      }
+      if (movePath(t, path, node)) {
+        return true;
+      }
+    }
+
+    // the map has grown in the meantime
+    return true;
+  }
+
+  /**
+   * Searches breadth-first for the shortest cuckoo path starting from any slot of the two buckets
+   * of a key.
+   *
+   * @return node with a free slot, or -1 if no path was found within {@link #MAX_ROUTE} moves and
+   * {@link #MAX_SEARCH_NODES} examined slots
+   */
+  private int findPath(Table t, CuckooPath path, long h) {
+    path.clear();
+    int b0 = t.bucketFor(h, 0);
+    int b1 = t.bucketFor(h, 1);
+    for (int s = 0; s < slotsPerBucket; s++) {
+      path.add(0, b0 * slotsPerBucket + s, -1);
+      path.add(1, b1 * slotsPerBucket + s, -1);
+    }
+
+    while (path.hasNext()) {
+      int node = path.next();
+      int table = path.table(node);
+      Object key = t.keys[table].get(path.position(node));
+
+      // removed in the meantime
+      if (key == null) {
+        return node;
+      }
+
+      if (path.depth(node) >= MAX_ROUTE) {
+        return -1;
+      }
+
+      int destTable = 1 - table;
+      int destBucket = t.bucketFor(t.hasher.hash(key), destTable);
+
+      int free = t.freeSlot(destTable, destBucket);
+      if (free >= 0) {
+        return path.add(destTable, free, node);
+      }
+
+      for (int pos = destBucket * slotsPerBucket; pos < (destBucket + 1) * slotsPerBucket; pos++) {
+        if (!path.onBranch(node, destTable, pos) && path.add(destTable, pos, node) < 0) {
+          return -1;
+        }
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Moves each entry on the branch one step down, starting from the free slot at {@code node}.
+   *
+   * @return false if a slot on the path has changed since the path was searched
+   */
+  private boolean movePath(Table t, CuckooPath path, int node) {
+    for (int parent = path.parent(node); parent >= 0; node = parent, parent = path.parent(node)) {
+      int table = path.table(parent);
+      int pos = path.position(parent);
+      int destTable = path.table(node);
+      int destPos = path.position(node);
+
+      int s0 = stripeFor(pos / slotsPerBucket);
+      int s1 = stripeFor(destPos / slotsPerBucket);
+      lock(s0, s1);
+      try {
+        if (t != current) {
+          return false;
+        }
+        // logged before the entry is moved, see EntryIterator
+        logRelocation(t, t.keys[table].get(pos), pos * TABLES_COUNT + table);
+        if (!t.move(table, pos, destTable, destPos)) {
+          return false;
+        }
+      } finally {
+        unlock(s0, s1);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the key of an entry that is being relocated to the logs of the iterators. Called with the
+   * stripe of the entry locked.
+   *
+   * @param from slot that the entry leaves, in the order of {@link EntryIterator}
+   */
+  private void logRelocation(Table t, Object key, int from) {
+    if (key == null || relocationLogs.isEmpty()) {
+      return;
+    }
+    RelocationLog.Relocation<Object> relocation =
+        new RelocationLog.Relocation<Object>(t, key, key, from);
+    for (WeakReference<RelocationLog<Object>> ref : relocationLogs) {
+      RelocationLog<Object> log = ref.get();
+      if (log == null) {
+        relocationLogs.remove(ref);
+      } else {
+        log.add(relocation);
+      }
+    }
+  }
+
+  /**
+   * Rehashes the entries into tables twice as large, unless another thread has already done it.
+   */
+  private void grow(Table t) {
+    lockAll();
+    try {
+      if (t != current) {
+        return;
+      }
+
+      int newCapacity = t.capacity << 1;
+      while (true) {
+        if (newCapacity > MAXIMUM_CAPACITY) {
+          throw new IllegalStateException("Maximum capacity reached");
+        }
+
+        Table bigger = new Table(newCapacity, slotsPerBucket,
+                                 t.hasher.withSeed(ThreadLocalRandom.current().nextLong()));
+        if (reinsert(t, bigger)) {
+          current = bigger;
+          return;
+        }
+        newCapacity <<= 1;
+      }
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+   * Puts all entries of one table into another one that no other thread can see yet.
+   *
+   * @return false if an entry couldn't be put, and the new tables have to be larger
+   */
+  private boolean reinsert(Table from, Table to) {
+    CuckooPath path = path();
+
+    for (int i = 0; i < TABLES_COUNT; i++) {
+      for (int pos = 0; pos < from.keys[i].length(); pos++) {
+        Object key = from.keys[i].get(pos);
+        if (key == null) {
+          continue;
+        }
+
+        Object value = from.values[i].get(pos);
+        long h = to.hasher.hash(key);
+        int b0 = to.bucketFor(h, 0);
+        int b1 = to.bucketFor(h, 1);
+        if (to.store(0, b0, key, value) || to.store(1, b1, key, value)) {
+          continue;
+        }
+
+        int node = findPath(to, path, h);
+        if (node < 0) {
+          return false;
+        }
+        for (int parent; (parent = path.parent(node)) >= 0; node = parent) {
+          to.move(path.table(parent), path.position(parent), path.table(node), path.position(node));
+        }
+        to.keys[path.table(node)].set(path.position(node), key);
+        to.values[path.table(node)].set(path.position(node), value);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a view of the entries whose iterators are weakly consistent: they never throw
+   * {@link java.util.ConcurrentModificationException}, return every entry that is in the map for
+   * the whole iteration exactly once, and may or may not return entries added or removed in the
+   * meantime. Setting the value of a returned entry puts it into the map.
+   */
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return StripedCuckooHashMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      V value = get(e.getKey());
+      return value != null && value.equals(e.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!contains(o)) {
+        return false;
+      }
+      StripedCuckooHashMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+      return true;
+    }
+
+    @Override
+    public void clear() {
+      StripedCuckooHashMap.this.clear();
+    }
+  }
+
+  /**
+   * Scans the slots of the tables once, reading each of them under the stamp of its stripe. As in
+   * {@link ThreadSafeCuckooHashMap}, the key of each entry relocated during the scan is added to
+   * the {@link RelocationLog} of the iterator, which tells whether the scan has found the entry,
+   * and the entries that it doesn't find are returned at the end, so the scan is never repeated
+   * however many entries writers keep moving. Tables replaced by larger ones are not modified any
+   * more, so only the tables that were current when the iterator was created are scanned: every
+   * entry that is in the map for the whole iteration is still in them, or has been logged.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+    private final RelocationLog<Object> log = new RelocationLog<Object>() {
+      @Override
+      int scanned(Object tables) {
+        return tables == t ? index : IGNORED;
+      }
+    };
+    private final WeakReference<RelocationLog<Object>> logRef =
+        new WeakReference<RelocationLog<Object>>(log);
+
+    /**
+     * Tables being scanned, or {@code null} once the scan is over.
+     */
+    private Table t;
+
+    /**
+     * Next slot to scan: {@code index / 2} in the table {@code index % 2}.
+     */
+    private int index;
+
+    private Map.Entry<K, V> next;
+    private Map.Entry<K, V> last;
+
+    EntryIterator() {
+      // registered before the first slot is read
+      relocationLogs.add(logRef);
+      t = current;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      advance();
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      StripedCuckooHashMap.this.remove(last.getKey());
+      last = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      next = null;
+
+      while (t != null) {
+        if (index == TABLES_COUNT * t.keys[0].length()) {
+          t = null;
+          relocationLogs.remove(logRef);
+          break;
+        }
+
+        int table = index % TABLES_COUNT;
+        int pos = index / TABLES_COUNT;
+
+        StampedLock lock = stripes[stripeFor(pos / slotsPerBucket)];
+        long stamp = lock.tryOptimisticRead();
+        Object key = t.keys[table].get(pos);
+        Object value = t.values[table].get(pos);
+        if (!lock.validate(stamp)) {
+          stamp = lock.readLock();
+          try {
+            key = t.keys[table].get(pos);
+            value = t.values[table].get(pos);
+          } finally {
+            lock.unlockRead(stamp);
+          }
+        }
+        log.drain();
+        index++;
+
+        if (key != null && value != null && log.take(key)) {
+          next = new WriteThroughEntry((K) key, (V) value);
+          return;
+        }
+      }
+
+      Object key;
+      while ((key = log.poll()) != null) {
+        V value = get(key);
+        if (value != null) {
+          next = new WriteThroughEntry((K) key, value);
+          return;
+        }
+      }
+    }
+  }
+
+  private final class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V> {
+
+    WriteThroughEntry(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(V value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+
+  /**
+   * A pair of tables of buckets. The map replaces it with a larger one when it grows.
+   */
+  static final class Table {
+
+    /**
+     * Number of buckets in each table.
+     */
+    final int capacity;
+    final int slotsPerBucket;
+    final Hasher hasher;
+
+    final AtomicReferenceArray<Object>[] keys;
+    final AtomicReferenceArray<Object>[] values;
+
+    @SuppressWarnings("unchecked")
+    Table(int capacity, int slotsPerBucket, Hasher hasher) {
+      this.capacity = capacity;
+      this.slotsPerBucket = slotsPerBucket;
+      this.hasher = hasher;
+
+      this.keys = new AtomicReferenceArray[TABLES_COUNT];
+      this.values = new AtomicReferenceArray[TABLES_COUNT];
+      for (int i = 0; i < TABLES_COUNT; i++) {
+        keys[i] = new AtomicReferenceArray<Object>(capacity * slotsPerBucket);
+        values[i] = new AtomicReferenceArray<Object>(capacity * slotsPerBucket);
+      }
+    }
+
+    /**
+     * @return value of the key in one of its buckets, or {@code null}
+     */
+    Object lookup(Object key, int bucket0, int bucket1) {
+      int pos = find(0, bucket0, key);
+      if (pos >= 0) {
+        return values[0].get(pos);
+      }
+      pos = find(1, bucket1, key);
+      return pos >= 0 ? values[1].get(pos) : null;
+    }
+
+    int find(int table, int bucket, Object key) {
+      AtomicReferenceArray<Object> k = keys[table];
+      int start = bucket * slotsPerBucket;
+      for (int pos = start; pos < start + slotsPerBucket; pos++) {
+        Object candidate = k.get(pos);
+        if (candidate != null && candidate.equals(key)) {
+          return pos;
+        }
+      }
+      return -1;
+    }
+
+    int freeSlot(int table, int bucket) {
+      AtomicReferenceArray<Object> k = keys[table];
+      int start = bucket * slotsPerBucket;
+      for (int pos = start; pos < start + slotsPerBucket; pos++) {
+        if (k.get(pos) == null) {
+          return pos;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * @return false if the bucket is full
+     */
+    boolean store(int table, int bucket, Object key, Object value) {
+      int pos = freeSlot(table, bucket);
+      if (pos < 0) {
+        return false;
+      }
+      values[table].set(pos, value);
+      keys[table].set(pos, key);
+      return true;
+    }
+
+    /**
+     * Moves the entry of a slot to a free slot of its other bucket. The caller holds the locks
+     * of both buckets.
+     *
+     * @return false if the slots have changed since the move was planned
+     */
+    boolean move(int table, int pos, int destTable, int destPos) {
+      if (keys[destTable].get(destPos) != null) {
+        return false;
+      }
+
+      Object key = keys[table].get(pos);
+      if (key == null) {
+        // the slot has been freed anyway
+        return true;
+      }
+      if (bucketFor(hasher.hash(key), destTable) != destPos / slotsPerBucket) {
+        return false;
+      }
+
+      values[destTable].set(destPos, values[table].get(pos));
+      keys[destTable].set(destPos, key);
+      keys[table].set(pos, null);
+      values[table].set(pos, null);
+      return true;
+    }
+
+    /**
+     * @return bucket in the given table for a key with the given 64-bit hash
+     */
+    int bucketFor(long hash, int table) {
+      return Hasher.tableHash(hash, table) & (capacity - 1);
+    }
+  }
+}
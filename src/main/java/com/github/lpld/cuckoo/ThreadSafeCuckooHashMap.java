@@ -1,451 +1,2222 @@
 package com.github.lpld.cuckoo;
 
+import java.lang.ref.WeakReference;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 /**
+ * Lock-free cuckoo hash map.
+ *
+ * <p>When no cuckoo path can be found for a new key the map grows online: a new generation of
+ * tables twice as large is allocated and entries are migrated into it in chunks by the writer
+ * threads, while readers look into both generations until the migration is over. Each generation
+ * hashes keys with a freshly seeded {@link Hasher}, so a set of keys that couldn't be placed in
+ * the old tables is spread differently in the new ones.
+ *
+ * <p>Each generation has two tables by default, or up to {@value #MAX_TABLES_COUNT} of them. An
+ * entry that has to make room for another one can then go to any of its other slots, and a
+ * relocation records the chosen table in the flags of the slot it marks, so that any thread that
+ * runs into the mark can finish the move the same way. With more tables the map is filled to a
+ * higher load factor before it grows.
+ *
+ * <p>A key for which no cuckoo path is found is put into a small stash of each generation, which
+ * is only searched when a key is not found in its slots. The map starts growing only when the
+ * stash is full, so a single unlucky key doesn't cost a migration of all entries.
+ *
+ * <p>A large map can be built by the {@code from} factories, which allocate the tables for all
+ * entries at once and put them from the threads of a {@link ForkJoinPool}.
+ *
+ * <p>The number of entries is kept either in a {@link LongAdder}, which scales with the number of
+ * writers but whose {@link #size()} can miss updates that are being made while it is summed, or,
+ * in the exact mode, in a single {@link AtomicLong}, which all writers update and which always
+ * reflects every completed update.
+ *
+ * <p>A map created by {@link #cache} never grows. When no cuckoo path is found for a new key, it
+ * evicts one of the entries in the slots of the key instead, as a set-associative cache would:
+ * each entry that has been read since the last time it was considered gets a second chance, as
+ * in CLOCK, and the first one that hasn't been read is evicted.
+ *
+ * <p>Entries can be given a time to live by {@link #setTimeToLive}. An entry that has outlived it
+ * is removed lazily: a lookup doesn't return it, and whoever finds it while updating the map or
+ * searching for a cuckoo path removes it and may reuse its slot. Entries that nobody looks at are
+ * removed by {@link #sweep}, which examines a few slots at a time, and which can be scheduled to
+ * run in the background by {@link #scheduleSweep}.
+ *
+ * <p>A lookup reads the slots of a key again whenever a relocation may have moved the key between
+ * them while they were being read. After {@link #MAX_LOOKUP_RETRIES} such retries it pins its
+ * slots, and finishes the relocations that are under way on them itself. Writers never wait for a
+ * pinned slot: they search for a cuckoo path around it, or put the key into the stash, so only a
+ * relocation that had already been planned when the slots were pinned can still move an entry in
+ * or out of them. The lookup reads the pinned slots at most {@link #PINNED_READS} times and
+ * returns what it found the last time, so it takes a bounded number of steps however many entries
+ * writers are moving.
+ *
+ * <p>Internal events such as the lengths of cuckoo paths or retries caused by concurrent updates
+ * can be counted by passing {@link CuckooMetrics} to the constructor.
+ *
  * @author leopold
  * @since 3/02/15
  */
-public class ThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
+public class ThreadSafeCuckooHashMap<K, V> extends AbstractConcurrentCuckooMap<K, V> {
 
 
   private static final int DEFAULT_CAPACITY = 16;
 
-  int capacity;
+  private static final int DEFAULT_TABLES_COUNT = 2;
+  private static final int MAX_TABLES_COUNT = 1 << 3;
+
+  private static final int DESTINATION_MASK = MAX_TABLES_COUNT - 1 << 1;
+  private static final int TIMESTAMP_SHIFT = 4;
+  private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+  /**
+   * Number of indexes that a writer migrates at once when helping with a resize.
+   */
+  private static final int TRANSFER_CHUNK = 64;
+
+  private static final int FORWARDED = -2;
+
+  /**
+   * Number of keys whose slots {@link #getAll} reads at once.
+   */
+  private static final int BATCH_SIZE = 16;
+
+  /**
+   * Number of entries that a bulk load puts in one task without splitting it further.
+   */
+  private static final int BULK_LOAD_CHUNK = 4096;
+
+  private static final int CACHE_TABLES_COUNT = 4;
+
+  /**
+   * Number of slots that a scheduled sweep examines at a time.
+   */
+  private static final int SWEEP_CHUNK = 1024;
+
+  /**
+   * Number of slots per counter of pinned slots, see {@link Generation#pins}.
+   */
+  private static final int SLOTS_PER_PIN = 8;
+
+  /**
+   * Number of times a lookup reads the slots of a key once it has pinned them. The last read is
+   * returned even if a relocation that was planned before the slots were pinned has touched them.
+   */
+  static final int PINNED_READS = 2;
+
+  /**
+   * Left in a slot of an old generation once the slot has been migrated to the next one.
+   */
+  private static final Forwarding MOVED = new Forwarding(null);
+
+  private static final Object RETRY = new Object();
+
+  /**
+   * Value of an entry that has been removed from the map but may still occupy a slot.
+   */
+  private static final Object REMOVED = new Object();
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicReferenceFieldUpdater<Entry, Object> VALUE =
+      AtomicReferenceFieldUpdater.newUpdater(Entry.class, Object.class, "value");
+
+  /**
+   * Search tree reused by all relocations made by a thread.
+   */
+  private static final ThreadLocal<CuckooPath> PATH = new ThreadLocal<CuckooPath>();
 
   int MAX_ROUTE = 10;
+  int MAX_SEARCH_NODES = 256;
+  int STASH_SIZE = 4;
+
+  /**
+   * Number of times a lookup reads the slots of a key again before it pins them; with {@code 0}
+   * every lookup pins them.
+   */
+  int MAX_LOOKUP_RETRIES = 4;
+
+  final AtomicReference<Generation> current;
+
+  /**
+   * Logs of the iterators that are scanning the tables, to which each entry that leaves its slot
+   * for another one, or for the next generation, is added, see {@link EntryIterator}. An iterator
+   * that is dropped before it's done is collected, and its log is then removed by the next
+   * relocation.
+   */
+  private final CopyOnWriteArrayList<WeakReference<RelocationLog<Entry<K, V>>>> relocationLogs =
+      new CopyOnWriteArrayList<WeakReference<RelocationLog<Entry<K, V>>>>();
+
+  /**
+   * Number of entries, in the approximate mode.
+   */
+  private final LongAdder count;
+
+  /**
+   * Number of entries, in the exact mode.
+   */
+  private final AtomicLong exactCount;
+
+  /**
+   * Counters of internal events, or {@code null} if they are not counted.
+   */
+  private final CuckooMetrics metrics;
+
+  private final int tablesCount;
+
+  /**
+   * Once a key needed a relocation to be put, the map starts growing if more than this part of
+   * its slots is taken.
+   */
+  private final float maxLoadFactor;
+
+  /**
+   * Whether entries are evicted instead of growing the map, see {@link #cache}.
+   */
+  private final boolean evicting;
+
+  /**
+   * Time to live of the entries in nanoseconds, or {@code 0} if they don't expire.
+   */
+  private long timeToLive;
+
+  /**
+   * Slot at which the next {@link #sweep} starts, see {@link Generation#sweep}.
+   */
+  private final AtomicInteger sweepIndex = new AtomicInteger();
+
+  /**
+   * @param capacity    number of slots in each table
+   * @param tablesCount number of tables, from 2 to {@value #MAX_TABLES_COUNT}
+   * @param metrics     counters of internal events, or {@code null} not to count them
+   */
+  public ThreadSafeCuckooHashMap(int capacity, int tablesCount, Hasher hasher, boolean exactSize,
+                                 CuckooMetrics metrics) {
+    this(capacity, tablesCount, hasher, exactSize, metrics, false);
+  }
 
-  AtomicReferenceArray<Entry<K, V>>[] tables;
-  AtomicIntegerArray[] flags;
+  private ThreadSafeCuckooHashMap(int capacity, int tablesCount, Hasher hasher,
+                                  boolean exactSize, CuckooMetrics metrics, boolean evicting) {
+    if (tablesCount < 2 || tablesCount > MAX_TABLES_COUNT) {
+      throw new IllegalArgumentException("Illegal number of tables: " + tablesCount);
+    }
 
-  public ThreadSafeCuckooHashMap(int capacity) {
-    this.capacity = capacity;
+    this.tablesCount = tablesCount;
+    this.maxLoadFactor = tablesCount == 2 ? 0.5f : tablesCount == 3 ? 0.85f : 0.9f;
+    this.count = exactSize ? null : new LongAdder();
+    this.exactCount = exactSize ? new AtomicLong() : null;
+    this.metrics = metrics;
+    this.evicting = evicting;
+    this.current = new AtomicReference<Generation>(new Generation(tableSizeFor(capacity), hasher));
+  }
 
-    this.tables = new AtomicReferenceArray[]{
-        new AtomicReferenceArray<Entry<K, V>>(capacity),
-        new AtomicReferenceArray<Entry<K, V>>(capacity)
-    };
+  public ThreadSafeCuckooHashMap(int capacity, Hasher hasher, boolean exactSize,
+                                 CuckooMetrics metrics) {
+    this(capacity, DEFAULT_TABLES_COUNT, hasher, exactSize, metrics);
+  }
 
-    this.flags = new AtomicIntegerArray[]{
-        new AtomicIntegerArray(capacity),
-        new AtomicIntegerArray(capacity)
-    };
+  public ThreadSafeCuckooHashMap(int capacity, Hasher hasher, boolean exactSize) {
+    this(capacity, hasher, exactSize, null);
+  }
+
+  public ThreadSafeCuckooHashMap(int capacity, Hasher hasher) {
+    this(capacity, hasher, false);
+  }
+
+  public ThreadSafeCuckooHashMap(int capacity) {
+    this(capacity, new SeededHasher());
   }
 
   public ThreadSafeCuckooHashMap() {
     this(DEFAULT_CAPACITY);
   }
 
+  /**
+   * Creates a cache that takes a fixed amount of memory: instead of growing, it evicts entries
+   * that haven't been read recently to make room for new ones. The cache has
+   * {@value #CACHE_TABLES_COUNT} tables, which can be filled almost completely before the first
+   * eviction, and no stash.
+   *
+   * @param maxSize number of entries that the tables can hold, rounded up to a power of two
+   * @param metrics counters of hits, misses and evictions as well as of internal events, or
+   *                {@code null} not to count them
+   */
+  public static <K, V> ThreadSafeCuckooHashMap<K, V> cache(int maxSize, CuckooMetrics metrics) {
+    if (maxSize < CACHE_TABLES_COUNT || maxSize > MAXIMUM_CAPACITY) {
+      throw new IllegalArgumentException("Illegal cache size: " + maxSize);
+    }
+    ThreadSafeCuckooHashMap<K, V> cache = new ThreadSafeCuckooHashMap<K, V>(
+        maxSize / CACHE_TABLES_COUNT, CACHE_TABLES_COUNT, new SeededHasher(), false, metrics, true);
+    cache.setStashSize(0);
+    return cache;
+  }
+
+  public static <K, V> ThreadSafeCuckooHashMap<K, V> cache(int maxSize) {
+    return cache(maxSize, null);
+  }
+
+  /**
+   * Creates a map with all entries of the source, put in parallel by the threads of the common
+   * pool.
+   *
+   * @see #from(Map, ForkJoinPool)
+   */
+  public static <K, V> ThreadSafeCuckooHashMap<K, V> from(Map<? extends K, ? extends V> source) {
+    return from(source, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a map with all entries of the source, put in parallel by the threads of the pool.
+   *
+   * <p>The tables are allocated large enough for all entries at once, so the map doesn't have to
+   * grow while it is being filled, and the entries are split between the threads in ranges. The
+   * threads put them as concurrent {@link #put}s would, so an entry that has to be moved to make
+   * room for another one is relocated by the same lock-free protocol.
+   */
+  public static <K, V> ThreadSafeCuckooHashMap<K, V> from(Map<? extends K, ? extends V> source,
+                                                         ForkJoinPool pool) {
+    return bulkLoad(source.entrySet().toArray(), null, pool);
+  }
+
+  /**
+   * Creates a map that maps each of the keys to the value with the same index, put in parallel by
+   * the threads of the pool, as by {@link #from(Map, ForkJoinPool)}. If a key appears more than
+   * once, any of its values may end up in the map.
+   */
+  public static <K, V> ThreadSafeCuckooHashMap<K, V> from(K[] keys, V[] values, ForkJoinPool pool) {
+    if (values.length != keys.length) {
+      throw new IllegalArgumentException("Illegal number of values: " + values.length);
+    }
+    return bulkLoad(keys, values, pool);
+  }
+
+  /**
+   * Creates a map with the entries of the stream, put in parallel by the threads of the pool, as
+   * by {@link #from(Map, ForkJoinPool)}. The stream is collected first, so that the size of the
+   * tables is known. If a key appears more than once, any of its values may end up in the map.
+   */
+  public static <K, V> ThreadSafeCuckooHashMap<K, V> from(
+      Stream<? extends Map.Entry<? extends K, ? extends V>> entries, ForkJoinPool pool) {
+    return bulkLoad(entries.toArray(), null, pool);
+  }
+
+  /**
+   * @param items  keys, or entries if {@code values} is {@code null}
+   * @param values values of the keys, or {@code null}
+   */
+  private static <K, V> ThreadSafeCuckooHashMap<K, V> bulkLoad(Object[] items, Object[] values,
+                                                               ForkJoinPool pool) {
+    // with two tables the map only grows beyond half of its slots, so one slot per entry in each
+    ThreadSafeCuckooHashMap<K, V> map =
+        new ThreadSafeCuckooHashMap<K, V>(Math.max(items.length, DEFAULT_CAPACITY));
+    pool.invoke(map.new BulkLoad(items, values, 0, items.length));
+    return map;
+  }
+
   @Override
+  @SuppressWarnings("unchecked")
   public V put(K key, V value) {
-    int idx1 = indexFor(hash1(key));
-    int idx2 = indexFor(hash2(key));
+    checkNotNull(key, value);
+    Generation g = current.get();
+
+    while (true) {
+      g = prepareForUpdate(g, key);
+
+      Object result = g.putEntry(key, value, null, false, false);
+      if (result != RETRY) {
+        return (V) result;
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V putIfAbsent(K key, V value) {
+    checkNotNull(key, value);
+    Generation g = current.get();
+
+    while (true) {
+      g = prepareForUpdate(g, key);
+
+      Object result = g.putEntry(key, value, null, false, true);
+      if (result != RETRY) {
+        return (V) result;
+      }
+    }
+  }
+
+  /**
+   * Applies the remapping to the current value of the key and replaces the value with the result
+   * by a CAS, applying the remapping again if the value has changed in the meantime.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  V update(K key, Remapping<K, V> remapping) {
+    Generation g = current.get();
+
+    while (true) {
+      g = prepareForUpdate(g, key);
+
+      Object result = g.update(key, remapping);
+      if (result != RETRY) {
+        return (V) result;
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V remove(Object key) {
+    Generation g = current.get();
+
+    while (true) {
+      g = prepareForUpdate(g, key);
+
+      Object result = g.remove(key);
+      if (result != RETRY) {
+        return (V) result;
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public V get(Object key) {
+    Generation g = current.get();
+
+    while (true) {
+      Entry<K, V> e = g.lookup(key);
+      if (e != MOVED) {
+        Object value = e == null ? null : e.value;
+        if (value == REMOVED) {
+          value = null;
+        }
+        if (value != null && expire(e)) {
+          g.discard(e, g.hasher.hash(key));
+          value = null;
+        }
+        if (metrics != null) {
+          (value == null ? metrics.misses : metrics.hits).increment();
+        }
+        if (evicting && value != null && !e.referenced) {
+          e.referenced = true;
+        }
+        return (V) value;
+      }
+      g = g.next.get();
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Looks up several keys at once: puts the value of {@code keys[i]} into {@code values[i]}, or
+   * {@code null} if the key is absent.
+   *
+   * <p>The keys are taken in batches. The slots and flags of all keys of a batch are read first,
+   * so that their cache misses are outstanding at the same time instead of one after another, and
+   * then each key is looked up as by {@link #get}, finding its slots in the cache.
+   *
+   * @return number of keys found
+   */
+  public int getAll(K[] keys, V[] values) {
+    if (values.length < keys.length) {
+      throw new IllegalArgumentException("Fewer values than keys: " + values.length);
+    }
+
+    int found = 0;
+    for (int from = 0; from < keys.length; from += BATCH_SIZE) {
+      int to = Math.min(from + BATCH_SIZE, keys.length);
+      current.get().touch(keys, from, to);
+
+      for (int i = from; i < to; i++) {
+        V value = get(keys[i]);
+        if (value != null) {
+          found++;
+        }
+        values[i] = value;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return an immutable copy of the map that reads exactly two slots per lookup, with no
+   * volatile reads, see {@link FrozenCuckooHashMap}. Updates made while the map is being copied
+   * may or may not be in the copy, as with {@link #entrySet()}.
+   */
+  public FrozenCuckooHashMap<K, V> freeze() {
+    return FrozenCuckooHashMap.copyOf(this);
+  }
+
+  @Override
+  public int size() {
+    return (int) Math.min(mappingCount(), Integer.MAX_VALUE);
+  }
+
+  @Override
+  public long mappingCount() {
+    // a remove can be counted before the put of the same entry
+    return Math.max(exactCount != null ? exactCount.get() : count.sum(), 0);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return mappingCount() == 0;
+  }
+
+  private void addCount(long delta) {
+    if (exactCount != null) {
+      exactCount.addAndGet(delta);
+    } else {
+      count.add(delta);
+    }
+  }
+
+  /**
+   * Walks to the newest generation. Before leaving a generation that is being migrated, helps
+   * with the migration and makes sure that the slots of {@code key} have already been moved, so
+   * that the update can't be overwritten by a stale copy of the entry.
+   */
+  private Generation prepareForUpdate(Generation g, Object key) {
+    Generation next;
+    while ((next = g.next.get()) != null) {
+      g.transferChunk();
+      g.transferKey(key);
+      g = next;
+    }
+    return g;
+  }
+
+  private void transferEntry(Generation g, Entry<K, V> e) {
+    while (true) {
+      g = prepareForUpdate(g, e.key);
+
+      if (g.putEntry(e.key, null, e, true, false) != RETRY) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sets the number of times a lookup reads the slots of a key again before it pins them. Must be
+   * called before the map is shared between threads.
+   */
+  void setMaxLookupRetries(int maxLookupRetries) {
+    if (maxLookupRetries < 0) {
+      throw new IllegalArgumentException("Illegal number of retries: " + maxLookupRetries);
+    }
+    MAX_LOOKUP_RETRIES = maxLookupRetries;
+  }
+
+  /**
+   * Sets the maximum number of entries that may be displaced to make room for a new one. Must be
+   * called before the map is shared between threads.
+   */
+  public void setMaxPathLength(int maxPathLength) {
+    if (maxPathLength < 1) {
+      throw new IllegalArgumentException("Illegal path length: " + maxPathLength);
+    }
+    MAX_ROUTE = maxPathLength;
+  }
+
+  /**
+   * Sets the maximum number of slots examined by the search for a cuckoo path. Must be called
+   * before the map is shared between threads.
+   */
+  public void setMaxSearchNodes(int maxSearchNodes) {
+    if (maxSearchNodes < tablesCount) {
+      throw new IllegalArgumentException("Illegal number of search nodes: " + maxSearchNodes);
+    }
+    MAX_SEARCH_NODES = maxSearchNodes;
+  }
+
+  /**
+   * Sets the maximum number of entries of each generation that are kept aside when no cuckoo
+   * path can be found for them. With {@code 0} the map grows every time that happens. Must be
+   * called before the map is shared between threads.
+   */
+  public void setStashSize(int stashSize) {
+    if (stashSize < 0) {
+      throw new IllegalArgumentException("Illegal stash size: " + stashSize);
+    }
+    Generation g = current.get();
+    if (g.stashed.get() > 0) {
+      throw new IllegalStateException("The stash is in use");
+    }
+    STASH_SIZE = stashSize;
+    g.stash = new AtomicReferenceArray<Entry<K, V>>(stashSize);
+  }
+
+  /**
+   * Makes every entry expire once the given time has passed since its value was last set. Must be
+   * called before anything is put into the map and before it is shared between threads.
+   */
+  public void setTimeToLive(long timeToLive, TimeUnit unit) {
+    if (timeToLive <= 0) {
+      throw new IllegalArgumentException("Illegal time to live: " + timeToLive);
+    }
+    if (!isEmpty()) {
+      throw new IllegalStateException("The map is not empty");
+    }
+    this.timeToLive = unit.toNanos(timeToLive);
+  }
+
+  /**
+   * Removes the expired entries found in the next {@code maxSlots} slots of the tables. Each call
+   * continues where the previous one stopped, and starts over from the first slot once the last
+   * one has been examined, so calling it regularly with a small number of slots removes every
+   * expired entry eventually without ever pausing the caller for long.
+   *
+   * @return number of slots freed
+   */
+  public int sweep(int maxSlots) {
+    if (maxSlots < 1) {
+      throw new IllegalArgumentException("Illegal number of slots: " + maxSlots);
+    }
+    Generation g = current.get();
+    int slots = Math.min(maxSlots, tablesCount * g.capacity);
+    return g.sweep(sweepIndex.getAndAdd(slots), slots);
+  }
+
+  /**
+   * Runs {@link #sweep} of {@value #SWEEP_CHUNK} slots with the given period on the executor,
+   * until the returned future is cancelled.
+   */
+  public ScheduledFuture<?> scheduleSweep(ScheduledExecutorService executor, long period,
+                                          TimeUnit unit) {
+    return executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        sweep(SWEEP_CHUNK);
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * @return whether the time to live of the current value of the entry has passed
+   */
+  private boolean isExpired(Entry<K, V> e) {
+    return isExpired(e, e.value);
+  }
+
+  /**
+   * @return whether the time to live of the given value of an entry has passed. A value that has
+   * just been set and whose time to live hasn't been started yet is not expired.
+   */
+  private boolean isExpired(Entry<K, V> e, Object value) {
+    return timeToLive != 0 && e.renewedValue == value && System.nanoTime() - e.expiresAt >= 0;
+  }
+
+  /**
+   * Removes an expired entry logically, as a remove would, leaving its slots to be cleared by the
+   * caller.
+   *
+   * @return whether the entry is expired, in which case its value is now {@link #REMOVED}
+   */
+  private boolean expire(Entry<K, V> e) {
+    while (true) {
+      // read before the time to live, which is renewed only after a new value is set
+      Object old = e.value;
+      if (old == REMOVED) {
+        return timeToLive != 0 && System.nanoTime() - e.expiresAt >= 0;
+      }
+      if (!isExpired(e, old)) {
+        return false;
+      }
+      if (VALUE.compareAndSet(e, old, REMOVED)) {
+        addCount(-1);
+        if (metrics != null) {
+          metrics.expirations.increment();
+        }
+        return true;
+      }
+      // the value has just been replaced or removed
+    }
+  }
+
+  /**
+   * Starts the time to live of the value that has just been set on an entry. If the value is
+   * replaced in the meantime, the time to live is started for the new value instead, so that the
+   * last value set never stays without one whichever writer renews last.
+   */
+  private void renew(Entry<K, V> e) {
+    if (timeToLive == 0) {
+      return;
+    }
+    Object value;
+    do {
+      value = e.value;
+      e.expiresAt = System.nanoTime() + timeToLive;
+      e.renewedValue = value;
+    } while (e.value != value);
+  }
+
+  /**
+   * Adds an entry that is about to leave a slot of the generation to the logs of the iterators,
+   * see {@link EntryIterator}.
+   *
+   * @param from slot in the order of {@link EntryIterator}
+   */
+  private void logRelocation(Generation g, Entry<K, V> e, int from) {
+    if (relocationLogs.isEmpty()) {
+      return;
+    }
+    RelocationLog.Relocation<Entry<K, V>> relocation =
+        new RelocationLog.Relocation<Entry<K, V>>(g, e.key, e, from);
+    for (WeakReference<RelocationLog<Entry<K, V>>> ref : relocationLogs) {
+      RelocationLog<Entry<K, V>> log = ref.get();
+      if (log == null) {
+        relocationLogs.remove(ref);
+      } else {
+        log.add(relocation);
+      }
+    }
+  }
+
+  private void advance() {
+    Generation g;
+    Generation next;
+    while ((next = (g = current.get()).next.get()) != null && g.isTransferred()) {
+      current.compareAndSet(g, next);
+    }
+  }
+
+  /**
+   * Returns a view of the entries whose iterators are weakly consistent: they never throw
+   * {@link java.util.ConcurrentModificationException}, return every entry that is in the map for
+   * the whole iteration exactly once, and may or may not return entries added or removed in the
+   * meantime. Setting the value of a returned entry puts it into the map.
+   */
+  @Override
+  public Set<Map.Entry<K, V>> entrySet() {
+    return new EntrySet();
+  }
+
+  private final class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+      return new EntryIterator();
+    }
+
+    @Override
+    public int size() {
+      return ThreadSafeCuckooHashMap.this.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+      V value = get(e.getKey());
+      return value != null && value.equals(e.getValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+      if (!contains(o)) {
+        return false;
+      }
+      ThreadSafeCuckooHashMap.this.remove(((Map.Entry<?, ?>) o).getKey());
+      return true;
+    }
+  }
+
+  /**
+   * Scans the tables of each generation in turn, once. A relocation can move an entry from a slot
+   * that hasn't been scanned yet to one that has, or the other way, and so can a migration to the
+   * next generation. Until the scan is over, every entry that leaves its slot is therefore added
+   * to the {@link RelocationLog} of the iterator first, which tells whether the scan has already
+   * found it. Only the keys of such entries are remembered, and those that the scan doesn't find
+   * are returned at the end, so an entry that is in the map for the whole iteration is returned
+   * once, and the iterator takes the same number of steps however many entries writers keep
+   * moving. An entry that was already leaving its slot when the iterator was created isn't in the
+   * log, and an entry may even be left in two of its slots for good, so the key is remembered as
+   * well when the scan finds the entry in a frozen slot or in another of its slots too.
+   */
+  private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+    private final RelocationLog<Entry<K, V>> log = new RelocationLog<Entry<K, V>>() {
+      @Override
+      int scanned(Object tables) {
+        int scanned = Integer.MAX_VALUE;
+        for (Generation s = first; s != null; s = s.next.get()) {
+          if (s == g) {
+            if (tables == s) {
+              return index;
+            }
+            scanned = 0;
+          } else if (tables == s) {
+            return scanned;
+          }
+        }
+        // a generation left behind before the scan started, whose last entries are still being
+        // migrated, so the scan hasn't found them
+        return 0;
+      }
+    };
+    private final WeakReference<RelocationLog<Entry<K, V>>> logRef =
+        new WeakReference<RelocationLog<Entry<K, V>>>(log);
+
+    /**
+     * Generation in which the scan started.
+     */
+    private Generation first;
+
+    /**
+     * Generation being scanned, or {@code null} once the scan is over.
+     */
+    private Generation g;
+
+    /**
+     * Next slot to scan: {@code index / tablesCount} in the table {@code index % tablesCount},
+     * then the slots of the stash.
+     */
+    private int index;
+
+    private Map.Entry<K, V> next;
+    private Map.Entry<K, V> last;
+
+    EntryIterator() {
+      // registered before the first slot is read
+      relocationLogs.add(logRef);
+      first = current.get();
+      g = first;
+      advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      last = next;
+      advance();
+      return last;
+    }
+
+    @Override
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      ThreadSafeCuckooHashMap.this.remove(last.getKey());
+      last = null;
+    }
+
+    /**
+     * @param other another slot in which the entry of the slot that has just been scanned was
+     *              found as well, or -1
+     * @return whether to return the entry of the slot
+     */
+    private boolean take(Entry<K, V> slot, int other) {
+      if (slot instanceof Forwarding) {
+        // may have been copied to the next generation already
+        return log.takeMoving(slot.key, false);
+      }
+      if (other >= 0) {
+        return log.takeMoving(slot.key, other < index);
+      }
+      return log.take(slot.key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      next = null;
+
+      while (g != null) {
+        int slots = tablesCount * g.capacity;
+        if (index == slots + g.stash.length()) {
+          g = g.next.get();
+          index = 0;
+          if (g == null) {
+            relocationLogs.remove(logRef);
+          }
+          continue;
+        }
+
+        int table = index % tablesCount;
+        int idx = index / tablesCount;
+        boolean stashed = index >= slots;
+        Entry<K, V> slot = stashed ? g.stash.get(index - slots) : g.tables[table].get(idx);
+
+        // MOVED unwraps to null: the entry is in the next generation
+        Entry<K, V> e = unwrap(slot);
+        Object value = e == null ? REMOVED : e.value;
+        boolean live = value != REMOVED && !isExpired(e, value);
+        // looked for before the relocations are processed, so that one that has copied the entry
+        // to another slot is among them
+        int other = live && !stashed && e == slot ? g.otherSlot(e, table) : -1;
+        log.drain();
+        index++;
+
+        if (live && take(slot, other)) {
+          next = new WriteThroughEntry(e.key, (V) value);
+          return;
+        }
+      }
+
+      Entry<K, V> e;
+      while ((e = log.poll()) != null) {
+        Object value = e.value;
+        if (value != REMOVED && !isExpired(e, value)) {
+          next = new WriteThroughEntry(e.key, (V) value);
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Puts a range of the items of a bulk load, splitting it in halves between tasks until it is
+   * small enough.
+   */
+  private final class BulkLoad extends RecursiveAction {
+
+    private final Object[] items;
+    private final Object[] values;
+    private final int from;
+    private final int to;
+
+    BulkLoad(Object[] items, Object[] values, int from, int to) {
+      this.items = items;
+      this.values = values;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void compute() {
+      if (to - from > BULK_LOAD_CHUNK) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new BulkLoad(items, values, from, middle),
+                  new BulkLoad(items, values, middle, to));
+        return;
+      }
+
+      for (int i = from; i < to; i++) {
+        if (values == null) {
+          Map.Entry<K, V> e = (Map.Entry<K, V>) items[i];
+          put(e.getKey(), e.getValue());
+        } else {
+          put((K) items[i], (V) values[i]);
+        }
+      }
+    }
+  }
+
+  private final class WriteThroughEntry extends AbstractMap.SimpleEntry<K, V> {
+
+    WriteThroughEntry(K key, V value) {
+      super(key, value);
+    }
+
+    @Override
+    public V setValue(V value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+
+  /**
+   * A pair of tables of the same capacity. A new generation is created each time the map grows.
+   */
+  private class Generation {
+
+    final int capacity;
+    final Hasher hasher;
+
+    final AtomicReferenceArray<Entry<K, V>>[] tables;
+    final AtomicIntegerArray[] flags;
+
+    /**
+     * Entries for which no cuckoo path was found. They stay here until they are removed or
+     * migrated to the next generation.
+     */
+    AtomicReferenceArray<Entry<K, V>> stash;
+
+    /**
+     * Upper bound of the number of entries in the stash: it is incremented before an entry is
+     * put there and decremented after it's gone, so a reader that sees {@code 0} can skip it.
+     */
+    final AtomicInteger stashed = new AtomicInteger();
+
+    /**
+     * Number of lookups that have pinned the slots whose {@link #pinIndex} is the index, see
+     * {@link #MAX_LOOKUP_RETRIES}. There is a counter for every {@link #SLOTS_PER_PIN} slots, and
+     * the slots are spread over the counters by a hash, so a pinned slot only shares its counter
+     * with a few unrelated ones, which writers then merely have to route around.
+     */
+    final AtomicIntegerArray pins;
+
+    final AtomicReference<Generation> next = new AtomicReference<Generation>();
+    final AtomicInteger transferIndex = new AtomicInteger();
+    final AtomicInteger transferred = new AtomicInteger();
+
+    Generation(int capacity, Hasher hasher) {
+      this.capacity = capacity;
+      this.hasher = hasher;
+
+      this.tables = new AtomicReferenceArray[tablesCount];
+      this.flags = new AtomicIntegerArray[tablesCount];
+      for (int t = 0; t < tablesCount; t++) {
+        tables[t] = new AtomicReferenceArray<Entry<K, V>>(capacity);
+        flags[t] = new AtomicIntegerArray(capacity);
+      }
+
+      this.stash = new AtomicReferenceArray<Entry<K, V>>(STASH_SIZE);
+      this.pins = new AtomicIntegerArray(
+          Integer.highestOneBit((int) Math.max(1, (long) capacity * tablesCount / SLOTS_PER_PIN)));
+    }
+
+    /**
+     * Puts a value for a key. If there already is an entry for the key, its value is replaced in
+     * place, so a new entry is only allocated for a new key.
+     *
+     * @param entry     entry to put if the key is absent, or {@code null} to create one
+     * @param migrating    whether the entry is being copied from the previous generation: it is
+     *                     only put if the key is absent, and it is not counted as a new entry
+     * @param onlyIfAbsent whether the value of a key that is already there is to be left as it is
+     */
+    @SuppressWarnings("unchecked")
+    Object putEntry(K key, Object value, Entry<K, V> entry, boolean migrating,
+                    boolean onlyIfAbsent) {
+      long h = hasher.hash(key);
+      int pathLength = 0;
+
+      while (true) {
+
+        int table = internalFind(key, h);
+
+        if (table == FORWARDED) {
+          return RETRY;
+        }
+
+        if (table >= 0) {
+          Entry<K, V> e = tables[table].get(indexFor(h, table));
+          if (e == null || e instanceof Forwarding || !key.equals(e.key)) {
+            // moved or removed in the meantime
+            putRetried();
+            continue;
+          }
+
+          Object old = e.value;
+          if (old == REMOVED || expire(e)) {
+            unlink(e, h);
+            putRetried();
+            continue;
+          }
+
+          if (migrating || onlyIfAbsent) {
+            return old;
+          }
+          if (VALUE.compareAndSet(e, old, value)) {
+            renew(e);
+            return old;
+          }
+          putRetried();
+          continue;
+        }
+
+        int s = findInStash(key);
+        if (s == FORWARDED) {
+          return RETRY;
+        }
+
+        if (s >= 0) {
+          Entry<K, V> e = stash.get(s);
+          if (e == null || e instanceof Forwarding || !key.equals(e.key)) {
+            putRetried();
+            continue;
+          }
+
+          Object old = e.value;
+          if (old == REMOVED || expire(e)) {
+            unstash(e, s);
+            putRetried();
+            continue;
+          }
+
+          if (migrating || onlyIfAbsent) {
+            return old;
+          }
+          if (VALUE.compareAndSet(e, old, value)) {
+            renew(e);
+            return old;
+          }
+          putRetried();
+          continue;
+        }
+
+        if (entry == null) {
+          entry = new Entry<K, V>(key, (V) value);
+          renew(entry);
+        }
+
+        int free = freeTable(h);
+        if (free >= 0) {
+          int idx = indexFor(h, free);
+          if (!tables[free].compareAndSet(idx, null, entry)) {
+            putRetried();
+            continue;
+          }
+
+          if (!migrating) {
+            if (isInTablesBefore(entry, h, free) && VALUE.compareAndSet(entry, value, REMOVED)) {
+              // the key was put into a slot of an earlier table concurrently, put the value there
+              tables[free].compareAndSet(idx, entry, null);
+              entry = null;
+              putRetried();
+              continue;
+            }
+
+            if (onlyIfAbsent && isLiveAfter(entry, h, free)
+                && VALUE.compareAndSet(entry, value, REMOVED)) {
+              // the key was put into a later table or the stash concurrently, keep it there
+              unlink(entry, h);
+              entry = null;
+              putRetried();
+              continue;
+            }
+
+            Object old = takeOver(entry, h, free);
+            if (old == null) {
+              old = takeOverStashed(key);
+            }
+            if (old != null) {
+              if (onlyIfAbsent) {
+                // the key was put concurrently after all, so its value is the one to keep
+                VALUE.compareAndSet(entry, value, old);
+              }
+              return old;
+            }
+          }
+
+          inserted(migrating, pathLength);
+          return null;
+        }
+
+        // no room, relocation is needed
+        pathLength = relocate(h);
+        if (pathLength >= 0) {
+          continue;
+        }
+
+        if (metrics != null) {
+          metrics.failedRelocations.increment();
+        }
+
+        // put the key aside until the map grows
+        s = freeStashSlot();
+        if (s >= 0) {
+          stashed.incrementAndGet();
+          if (stash.compareAndSet(s, null, entry)) {
+            if (!migrating && internalFind(key, h) >= 0
+                && VALUE.compareAndSet(entry, value, REMOVED)) {
+              // the key was put into one of its slots concurrently, put the value there instead
+              unstash(entry, s);
+              entry = null;
+              putRetried();
+              continue;
+            }
+            inserted(migrating, -1);
+            return null;
+          }
+          stashed.decrementAndGet();
+          putRetried();
+          continue;
+        }
+
+        if (evicting) {
+          evict(h);
+          continue;
+        }
+
+        startResize();
+        return RETRY;
+      }
+    }
+
+    /**
+     * Evicts one of the entries in the slots of a key, so that the key can be put into its slot.
+     * An entry that has been read since it was last considered is passed over once, and only
+     * evicted if all the others have been read too.
+     */
+    private void evict(long h) {
+      int start = ThreadLocalRandom.current().nextInt(tables.length);
+
+      for (int pass = 0; pass < 2; pass++) {
+        for (int i = 0; i < tables.length; i++) {
+          int t = (start + i) % tables.length;
+          int idx = indexFor(h, t);
+          int f = flags[t].get(idx);
+          Entry<K, V> e = tables[t].get(idx);
+
+          if (e == null) {
+            // freed in the meantime
+            return;
+          }
+          if (e instanceof Forwarding || isMarked(f)) {
+            continue;
+          }
+          if (e.referenced && pass == 0) {
+            e.referenced = false;
+            continue;
+          }
+
+          Object old = e.value;
+          if (old != REMOVED && VALUE.compareAndSet(e, old, REMOVED)) {
+            addCount(-1);
+            if (metrics != null) {
+              metrics.evictions.increment();
+            }
+          }
+          unlink(e, hasher.hash(e.key));
+          return;
+        }
+      }
+    }
+
+    /**
+     * Removes an entry in two steps: its value is first replaced with {@link #REMOVED}, which
+     * removes it logically, and only then its slot is cleared. Whoever finds a removed entry in a
+     * slot clears the slot.
+     */
+    Object remove(Object key) {
+      long h = hasher.hash(key);
+
+      while (true) {
+        int table = internalFind(key, h);
+
+        if (table == FORWARDED) {
+          return RETRY;
+        }
+
+        if (table < 0) {
+          return removeStashed(key);
+        }
+
+        Entry<K, V> e = tables[table].get(indexFor(h, table));
+        if (e == null || e instanceof Forwarding || !key.equals(e.key)) {
+          removeRetried();
+          continue;
+        }
+
+        Object old = e.value;
+        if (old == REMOVED || expire(e)) {
+          unlink(e, h);
+          removeRetried();
+          continue;
+        }
+
+        if (VALUE.compareAndSet(e, old, REMOVED)) {
+          addCount(-1);
+          // wherever a relocation has moved the entry to by now
+          unlink(e, h);
+          return old;
+        }
+        removeRetried();
+      }
+    }
+
+    /**
+     * Applies the remapping to the value of the key, and replaces the value with the result if it
+     * is still the same. An absent key is put as by {@link #putIfAbsent}.
+     *
+     * @return the new value of the key, {@code null} if it is absent after the update, or
+     * {@link #RETRY}
+     */
+    @SuppressWarnings("unchecked")
+    Object update(K key, Remapping<K, V> remapping) {
+      long h = hasher.hash(key);
+
+      while (true) {
+        Entry<K, V> e = findLive(key, h);
+        if (e == MOVED) {
+          return RETRY;
+        }
+
+        if (e == null) {
+          V value = remapping.remap(key, null);
+          if (value == null) {
+            return null;
+          }
+          Object old = putEntry(key, value, null, false, true);
+          if (old == null || old == RETRY) {
+            return old == null ? value : RETRY;
+          }
+          // put concurrently, remap its value
+          putRetried();
+          continue;
+        }
+
+        Object old = e.value;
+        if (old == REMOVED) {
+          continue;
+        }
 
-    while (true) {
+        V value = remapping.remap(key, (V) old);
+        if (value == old) {
+          return old;
+        }
+        if (VALUE.compareAndSet(e, old, value == null ? REMOVED : value)) {
+          if (value == null) {
+            addCount(-1);
+            discard(e, h);
+          } else {
+            renew(e);
+          }
+          return value;
+        }
+        putRetried();
+      }
+    }
+
+    /**
+     * @return the entry of the key in the tables or in the stash, whose value wasn't
+     * {@link #REMOVED} when it was found, {@code null} if there is none, or {@link #MOVED} if the
+     * key has to be looked up in the next generation
+     */
+    private Entry<K, V> findLive(Object key, long h) {
+      while (true) {
+        int table = internalFind(key, h);
+        if (table == FORWARDED) {
+          return MOVED;
+        }
 
-      FindResult findResult = internalFind(key);
+        if (table >= 0) {
+          Entry<K, V> e = tables[table].get(indexFor(h, table));
+          if (e == null || e instanceof Forwarding || !key.equals(e.key)) {
+            continue;
+          }
+          if (e.value == REMOVED || expire(e)) {
+            unlink(e, h);
+            continue;
+          }
+          return e;
+        }
 
-      if (findResult.table >= 0) {
-        Entry<K, V> e = findResult.table == 0 ? findResult.e1 : findResult.e2;
-        int idx = findResult.table == 0 ? idx1 : idx2;
+        int s = findInStash(key);
+        if (s == FORWARDED) {
+          return MOVED;
+        }
+        if (s < 0) {
+          return null;
+        }
 
-        if (tables[findResult.table].compareAndSet(idx, e, new Entry<K, V>(key, value))) {
-          return e.getValue();
+        Entry<K, V> e = stash.get(s);
+        if (e == null || e instanceof Forwarding || !key.equals(e.key)) {
+          continue;
         }
-        continue;
+        if (e.value == REMOVED || expire(e)) {
+          unstash(e, s);
+          continue;
+        }
+        return e;
       }
+    }
 
-      if (findResult.e1 == null) {
-        if (tables[0].compareAndSet(idx1, null, new Entry<K, V>(key, value))) {
-          return null;
+    /**
+     * Clears the slots of a removed entry, in the tables or in the stash.
+     */
+    private void discard(Entry<K, V> e, long h) {
+      unlink(e, h);
+      if (stashed.get() > 0) {
+        for (int i = 0; i < stash.length(); i++) {
+          if (stash.get(i) == e) {
+            unstash(e, i);
+          }
         }
-        continue;
       }
+    }
 
-      if (findResult.e2 == null) {
-        if (tables[1].compareAndSet(idx2, null, new Entry<K, V>(key, value))) {
+    private Object removeStashed(Object key) {
+      while (true) {
+        int s = findInStash(key);
+        if (s == FORWARDED) {
+          return RETRY;
+        }
+        if (s < 0) {
           return null;
         }
-        continue;
-      }
 
-      // no room, relocation is needed
-      if (relocate(0, idx1)) {
-        continue;
-      } else {
-        throw new IllegalStateException("rehashing needed");
+        Entry<K, V> e = stash.get(s);
+        if (e == null || e instanceof Forwarding || !key.equals(e.key)) {
+          removeRetried();
+          continue;
+        }
+
+        Object old = e.value;
+        if (old == REMOVED || expire(e)) {
+          unstash(e, s);
+        } else if (VALUE.compareAndSet(e, old, REMOVED)) {
+          addCount(-1);
+          unstash(e, s);
+          return old;
+        }
+        removeRetried();
       }
+    }
 
+    /**
+     * @return index of the key in the stash, -1 if it's not there, or {@link #FORWARDED} if the
+     * stash is being migrated to the next generation
+     */
+    private int findInStash(Object key) {
+      if (stashed.get() == 0) {
+        return -1;
+      }
+      for (int i = 0; i < stash.length(); i++) {
+        Entry<K, V> e = stash.get(i);
+        if (e instanceof Forwarding) {
+          return FORWARDED;
+        }
+        if (e != null && key.equals(e.key)) {
+          return i;
+        }
+      }
+      return -1;
     }
 
-  }
+    private int freeStashSlot() {
+      for (int i = 0; i < stash.length(); i++) {
+        if (stash.get(i) == null) {
+          return i;
+        }
+      }
+      return -1;
+    }
 
-  private boolean checkCounters(int f1, int f2, int ff1, int ff2) {
+    private void unstash(Entry<K, V> e, int s) {
+      if (stash.compareAndSet(s, e, null)) {
+        stashed.decrementAndGet();
+      }
+    }
 
-    boolean result = timestamp(ff1) - timestamp(f1) < 2 &&
-                     timestamp(ff2) - timestamp(f2) < 2 &&
-                     timestamp(ff2) - timestamp(f1) < 3;
-    if (!result) {
-      System.out.println("-- Counters differ");
+    /**
+     * Called after a new entry was put into one of the slots of its key. If a concurrent put has
+     * meanwhile put another entry for the key into the stash, that entry is removed and its value
+     * is returned as the one that the new entry replaced.
+     */
+    private Object takeOverStashed(K key) {
+      int s;
+      while ((s = findInStash(key)) >= 0) {
+        Entry<K, V> dup = stash.get(s);
+        if (!isEntryFor(dup, key)) {
+          continue;
+        }
+        Object old = dup.value;
+        if (old == REMOVED || expire(dup)) {
+          unstash(dup, s);
+        } else if (VALUE.compareAndSet(dup, old, REMOVED)) {
+          unstash(dup, s);
+          return old;
+        }
+      }
+      return null;
     }
 
-    return result;
-  }
+    private void putRetried() {
+      if (metrics != null) {
+        metrics.putRetries.increment();
+      }
+    }
 
-  private boolean relocate(final int table, final int index) {
-    int[] route = new int[MAX_ROUTE];
-    int startLevel = 0;
+    private void removeRetried() {
+      if (metrics != null) {
+        metrics.removeRetries.increment();
+      }
+    }
 
-    int tbl = table;
-    int idx = index;
+    /**
+     * @return first table in which the slot of the key is free, or -1 if all of them are taken
+     */
+    private int freeTable(long h) {
+      for (int t = 0; t < tables.length; t++) {
+        if (tables[t].get(indexFor(h, t)) == null) {
+          return t;
+        }
+      }
+      return -1;
+    }
 
-    while (true) {
-      int depth = getCuckooPath(route, startLevel, tbl, idx);
+    /**
+     * @return whether another entry for the key of the given one is in a table before the given
+     * one; the entry itself may have been moved there by a relocation
+     */
+    private boolean isInTablesBefore(Entry<K, V> entry, long h, int table) {
+      for (int t = 0; t < table; t++) {
+        Entry<K, V> e = tables[t].get(indexFor(h, t));
+        if (e != entry && isEntryFor(e, entry.key)) {
+          return true;
+        }
+      }
+      return false;
+    }
 
-      if (depth < 0) {
-        return false;
+    /**
+     * Called after a new entry was put into the slot of its key in the given table. If a
+     * concurrent put has meanwhile put another entry for the key into a later table, that entry
+     * is removed and its value is returned as the one that the new entry replaced. Concurrent
+     * puts of the same key thus agree that the entry in the earliest table is the one to keep.
+     * The new entry itself may have been moved to a later table by a relocation, and is skipped.
+     */
+    private Object takeOver(Entry<K, V> entry, long h, int table) {
+      for (int t = table + 1; t < tables.length; t++) {
+        int idx = indexFor(h, t);
+        Entry<K, V> dup = tables[t].get(idx);
+        while (dup != entry && isEntryFor(dup, entry.key)) {
+          Object old = dup.value;
+          if (old == REMOVED || expire(dup)) {
+            break;
+          }
+          if (VALUE.compareAndSet(dup, old, REMOVED)) {
+            tables[t].compareAndSet(idx, dup, null);
+            return old;
+          }
+        }
       }
+      return null;
+    }
 
-//       - 1;
+    /**
+     * @return whether another entry for the key of the given one, which hasn't been removed, is
+     * in a table after the given one or in the stash
+     */
+    private boolean isLiveAfter(Entry<K, V> entry, long h, int table) {
+      for (int t = table + 1; t < tables.length; t++) {
+        Entry<K, V> e = tables[t].get(indexFor(h, t));
+        if (e != entry && isEntryFor(e, entry.key) && e.value != REMOVED
+            && !isExpired(e)) {
+          return true;
+        }
+      }
+      if (stashed.get() > 0) {
+        for (int i = 0; i < stash.length(); i++) {
+          Entry<K, V> e = stash.get(i);
+          if (e != entry && isEntryFor(e, entry.key) && e.value != REMOVED
+              && !isExpired(e)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
 
-      if (depth % 2 == 0)  {
-        tbl = 1 - tbl; // + 1 - (depth % 2);
+    private boolean isEntryFor(Entry<K, V> e, K key) {
+      return e != null && !(e instanceof Forwarding) && key.equals(e.key);
+    }
 
+    private void unlink(Entry<K, V> e, long h) {
+      for (int t = 0; t < tables.length; t++) {
+        tables[t].compareAndSet(indexFor(h, t), e, null);
       }
+    }
 
-      boolean ok = true;
-
-      for (int i = depth - 1; i >= 0; i--, tbl = 1 - tbl) {
-        idx = route[i];
-        Entry<K, V> e = getAndRelocate(tbl, idx);
-        if (e == null) {
-          continue; // really ?
+    /**
+     * Reads the slots of the keys from {@code keys[from]} to {@code keys[to - 1]} into the cache.
+     */
+    void touch(Object[] keys, int from, int to) {
+      for (int i = from; i < to; i++) {
+        long h = hasher.hash(keys[i]);
+        for (int t = 0; t < tables.length; t++) {
+          int idx = indexFor(h, t);
+          // volatile reads, which can't be optimized away
+          tables[t].get(idx);
+          flags[t].get(idx);
         }
+      }
+    }
+
+    /**
+     * @return the entry for the key, {@code null} if there is none, or {@link #MOVED} if the key
+     * has to be looked up in the next generation.
+     */
+    Entry<K, V> lookup(Object key) {
+      long h = hasher.hash(key);
+
+      long stamps = 0;
+      boolean first = true;
+      boolean forwarded = false;
+      int retries = 0;
+      boolean stalled = false;
+
+      try {
+        while (true) {
+          long prevStamps = stamps;
+          stamps = 0;
+
+          for (int t = 0; t < tables.length; t++) {
+            int idx = indexFor(h, t);
+            Entry<K, V> e;
+            int f;
+            int eFlags = -1;
+
+            do {
+              e = tables[t].get(idx);
+              f = eFlags;
+              eFlags = flags[t].get(idx);
+
+              if (stalled && f == eFlags && isMarked(eFlags)) {
+                // finish the move instead of waiting for whoever started it
+                helpRelocate(t, idx, false);
+                f = -1;
+              }
+            } while (f != eFlags);
+
+            stamps += timestamp(eFlags);
+
+            if (e == MOVED) {
+              forwarded = true;
+            } else if (e != null && key.equals(e.key) && unwrap(e).value != REMOVED) {
+              return unwrap(e);
+            }
+          }
 
-        int hash = tbl == 0 ? hash2(e.getKey()) : hash1(e.getKey());
-        int destIndex = indexFor(hash);
+          if (first || !checkCounters(prevStamps, stamps)) {
+            if (!first) {
+              retries++;
+            }
+            first = false;
+
+            if (!stalled && retries >= MAX_LOOKUP_RETRIES) {
+              stalled = true;
+              pin(h, 1);
+              if (metrics != null) {
+                metrics.slowLookups.increment();
+              }
+            }
+            if (!stalled || retries < MAX_LOOKUP_RETRIES + PINNED_READS) {
+              continue;
+            }
+            // only relocations planned before the slots were pinned can have touched them, and
+            // the lookup has helped those that were under way: what it has just read is returned
+          }
 
-        Entry<K, V> old = tables[1 - tbl].get(destIndex);
+          if (stashed.get() > 0) {
+            for (int i = 0; i < stash.length(); i++) {
+              Entry<K, V> e = stash.get(i);
+              if (e == MOVED) {
+                forwarded = true;
+              } else if (e != null && key.equals(e.key) && unwrap(e).value != REMOVED) {
+                return unwrap(e);
+              }
+            }
+          }
 
-        if (old != null) {
-          startLevel = i + 1;
-          idx = destIndex;
-          tbl = 1 - tbl;
-          ok = false;
-          break;
+          return forwarded ? MOVED : null;
+        }
+      } finally {
+        if (stalled) {
+          pin(h, -1);
         }
-        helpRelocate(tbl, idx, true);
-
       }
+    }
 
-      if (ok) {
-        return true;
+    /**
+     * Pins or unpins the slots of a key.
+     */
+    private void pin(long h, int delta) {
+      for (int t = 0; t < tables.length; t++) {
+        pins.addAndGet(pinIndex(t, indexFor(h, t)), delta);
       }
     }
-  }
 
-  private int getCuckooPath(int[] route, int startLevel, int table, int index) {
+    /**
+     * @return whether a stalled lookup has pinned the slot, so that no entry may be moved in or
+     * out of it
+     */
+    private boolean isPinned(int table, int index) {
+      return pins.get(pinIndex(table, index)) != 0;
+    }
 
-    int depth = startLevel;
-    Entry<K, V> prev = null;
-    int prevIdx = -1;
-    while (true) {
-      Entry<K, V> e = getAndRelocate(table, index);
+    /**
+     * @return index of the counter in {@link #pins} of a slot
+     */
+    private int pinIndex(int table, int index) {
+      return (int) SeededHasher.mix((long) index * MAX_TABLES_COUNT + table) & (pins.length() - 1);
+    }
 
-      if (e == null) {
-        return depth;
-      }
+    /**
+     * @return table in which the key was found, -1 if it wasn't found, or {@link #FORWARDED} if
+     * one of its slots is being migrated to the next generation
+     */
+    private int internalFind(Object key, long h) {
+      long stamps = 0;
+      boolean first = true;
+
+      search:
+      while (true) {
+        long prevStamps = stamps;
+        stamps = 0;
+
+        int table = -1;
+        Entry<K, V> found = null;
+
+        for (int t = 0; t < tables.length; t++) {
+          int idx = indexFor(h, t);
+          Entry<K, V> e;
+          int f;
+          int eFlags = -1;
+
+          do {
+            e = tables[t].get(idx);
+            f = eFlags;
+            eFlags = flags[t].get(idx);
+          } while (f != eFlags);
+
+          stamps += timestamp(eFlags);
+
+          if (e == null) {
+            continue;
+          }
 
-      if (prev != null && e.key.equals(prev.key)) {
-        if (table == 0) {
-          deleteDuplicate(prev, prevIdx);
-        } else {
-          deleteDuplicate(e, index);
+          if (e instanceof Forwarding) {
+            return FORWARDED;
+          }
+
+          if (isMarked(eFlags)) {
+            helpRelocate(t, idx, false);
+            first = true;
+            continue search;
+          }
+
+          if (!e.key.equals(key)) {
+            continue;
+          }
+
+          if (found == null) {
+            table = t;
+            found = e;
+          } else if (found.value == REMOVED) {
+            // a removed entry that a relocation has put back, the other one is live
+            tables[table].compareAndSet(indexFor(h, table), found, null);
+            table = t;
+            found = e;
+          } else if (found != e) {
+            // the same entry in two slots is a relocation that isn't finished yet
+            deleteDuplicate(t, idx, e);
+          }
+        }
+
+        if (table >= 0) {
+          return table;
         }
-      }
 
-      route[depth] = index;
-      table = 1 - table;
-      int hash = table == 0 ? hash1(e.getKey()) : hash2(e.getKey());
-      index = indexFor(hash);
-      depth++;
-      prev = e;
-      prevIdx = index;
+        if (first || !checkCounters(prevStamps, stamps)) {
+          first = false;
+          continue;
+        }
 
-      if (depth >= MAX_ROUTE) {
         return -1;
       }
     }
 
-  }
+    /**
+     * Frees one of the slots of a key by moving the entries along the shortest cuckoo path. The
+     * path is searched without changing anything, and only then the entries are moved one by one
+     * starting from the free end, so that a concurrent reader can miss at most the entry that is
+     * being moved at the moment. If the path changes in the meantime, a new one is searched.
+     *
+     * @return number of entries moved, or -1 if no path was found
+     */
+    private int relocate(long h) {
+      CuckooPath path = PATH.get();
+      if (path == null || path.maxNodes() != MAX_SEARCH_NODES) {
+        path = new CuckooPath(MAX_SEARCH_NODES);
+        PATH.set(path);
+      }
 
-  private Entry<K, V> getAndRelocate(int table, int index) {
-    Entry<K, V> e;
-    int f;
-    int eFlags = -1;
-    do {
-      e = tables[table].get(index);
-      f = eFlags;
-      eFlags = flags[table].get(index);
+      while (true) {
+        int node = findCuckooPath(path, h);
 
-      if (f == eFlags && isMarked(eFlags)) {
-        helpRelocate(table, index, false);
-        f = -1;
+        if (node < 0) {
+          return -1;
+        }
+
+        if (movePath(path, node)) {
+          return path.depth(node);
+        }
       }
+    }
 
-    } while (f != eFlags);
+    /**
+     * @return the node with a free slot, or -1 if no path was found
+     */
+    private int findCuckooPath(CuckooPath path, long h) {
+      path.clear();
+      for (int t = 0; t < tables.length; t++) {
+        path.add(t, indexFor(h, t), -1);
+      }
 
-    return e;
-  }
+      while (path.hasNext()) {
+        int node = path.next();
+        int table = path.table(node);
+        Entry<K, V> e = getAndRelocate(table, path.position(node));
 
-  private boolean helpRelocate(int table, int index, boolean doMark) {
-    while (true) {
+        if (e == null) {
+          return node;
+        }
 
-      int f;
+        if (e instanceof Forwarding) {
+          return -1;
+        }
 
-      // read source and mark it for relocation
-      Entry<K, V> source;
-      int sFlags = -1;
+        if (expire(e)) {
+          // an expired entry gives up its slot instead of being moved
+          unlink(e, hasher.hash(e.getKey()));
+          if (tables[table].get(path.position(node)) == null) {
+            return node;
+          }
+        }
 
-      do {
-        source = tables[table].get(index);
+        if (path.depth(node) >= MAX_ROUTE) {
+          return -1;
+        }
 
-        if (source == null) {
-          return true;
+        // the entry of a pinned slot stays where it is
+        if (isPinned(table, path.position(node))) {
+          continue;
         }
 
-        f = sFlags;
-        sFlags = flags[table].get(index);
+        long eh = hasher.hash(e.getKey());
+        for (int destTable = 0; destTable < tables.length; destTable++) {
+          if (destTable == table) {
+            continue;
+          }
 
-        if (f == sFlags && doMark && !isMarked(sFlags)) {
-          flags[table].compareAndSet(index, sFlags, mark(sFlags));
-          f = -1; // we need read source once again
+          int destIndex = indexFor(eh, destTable);
+          if (!path.onBranch(node, destTable, destIndex) && !isPinned(destTable, destIndex)
+              && path.add(destTable, destIndex, node) < 0) {
+            return -1;
+          }
         }
-      } while (f != sFlags);
-
-      if (!isMarked(sFlags)) {
-        return true;
       }
 
-      // read destination
-      Entry<K, V> dest;
-      int destTable = 1 - table;
-      int hash = destTable == 0 ? hash1(source.getKey()) : hash2(source.getKey());
-      int destIdx = indexFor(hash);
-      int dFlags = -1;
-
-      do {
-        dest = tables[destTable].get(destIdx);
-        f = dFlags;
-        dFlags = flags[destTable].get(destIdx);
-      } while (f != dFlags);
+      return -1;
+    }
 
-      int sourceTs = timestamp(sFlags);
-      int destTs = timestamp(dFlags);
+    private boolean movePath(CuckooPath path, int node) {
+      for (int parent = path.parent(node); parent >= 0; node = parent, parent = path.parent(node)) {
+        int table = path.table(parent);
+        int index = path.position(parent);
+        int destTable = path.table(node);
 
-      if (dest == null) {
-        int newTs = Math.max(sourceTs, destTs) + 1;
-        if (tables[table].get(index) != source) {
+        Entry<K, V> e = getAndRelocate(table, index);
+        if (e == null) {
           continue;
         }
+        if (e instanceof Forwarding) {
+          return false;
+        }
 
-        // updating destination
-        if (tables[destTable].compareAndSet(destIdx, null, source)) {
-          tables[table].compareAndSet(index, source, null); // setting source to null
+        // the slot may hold another entry by now, which doesn't belong to this path
+        if (indexFor(hasher.hash(e.getKey()), destTable) != path.position(node)) {
+          return false;
+        }
 
-          // updating timestamps
-          flags[table].compareAndSet(index, sFlags, updateTimestamp(sFlags, sourceTs + 1));
-          flags[destTable].compareAndSet(destIdx, dFlags, updateTimestamp(dFlags, newTs));
-          return true;
+        // pinned since the path was found, another one is searched
+        if (isPinned(table, index) || isPinned(destTable, path.position(node))) {
+          return false;
+        }
+        if (!helpRelocate(table, index, destTable)) {
+          return false;
         }
       }
 
-      // means that someone has already moved the entry
-      if (source == dest) {
-        tables[table].compareAndSet(index, source, null); // setting source to null
-        flags[table].compareAndSet(index, sFlags, updateTimestamp(sFlags, sourceTs + 1));
-        return true;
-      }
+      return true;
+    }
 
-      // unmarking
-      flags[table].compareAndSet(index, sFlags, unmark(sFlags));
-      return false;
+    private Entry<K, V> getAndRelocate(int table, int index) {
+      Entry<K, V> e;
+      int f;
+      int eFlags = -1;
+      do {
+        e = tables[table].get(index);
+        f = eFlags;
+        eFlags = flags[table].get(index);
+
+        if (f == eFlags && isMarked(eFlags)) {
+          helpRelocate(table, index, false);
+          f = -1;
+        }
+
+      } while (f != eFlags);
+
+      return e;
     }
-  }
 
-  @Override
-  public V remove(Object key) {
-    int idx1 = indexFor(hash1(key));
-    int idx2 = indexFor(hash2(key));
+    /**
+     * Marks the entry of a slot as being moved to the given table, and moves it.
+     */
+    private boolean helpRelocate(int table, int index, int destTable) {
+      return helpRelocate(table, index, destTable, true);
+    }
 
-    while (true) {
-      FindResult findResult = internalFind(key);
+    /**
+     * Finishes moving the entry of a marked slot to the table recorded in the mark.
+     */
+    private boolean helpRelocate(int table, int index, boolean doMark) {
+      return helpRelocate(table, index, -1, doMark);
+    }
+
+    private boolean helpRelocate(int table, int index, int markDestTable, boolean doMark) {
+      if (metrics != null) {
+        metrics.helpRelocates.increment();
+      }
 
-      if (findResult.table == 0) {
-        if (tables[0]
-            .compareAndSet(idx1, findResult.e1, null)) {
-          return findResult.e1.getValue();
+      while (true) {
+
+        int f;
+
+        // read source and mark it for relocation
+        Entry<K, V> source;
+        int sFlags = -1;
+
+        do {
+          source = tables[table].get(index);
+          f = sFlags;
+          sFlags = flags[table].get(index);
+
+          if (source == null) {
+            // the entry has been removed, possibly after the slot was marked
+            if (isMarked(sFlags)) {
+              flags[table].compareAndSet(index, sFlags,
+                                         updateTimestamp(unmark(sFlags), timestamp(sFlags) + 1));
+            }
+            return true;
+          }
+
+          if (f == sFlags && doMark && !isMarked(sFlags)) {
+            flags[table].compareAndSet(index, sFlags, mark(sFlags, markDestTable));
+            f = -1; // we need read source once again
+          }
+        } while (f != sFlags);
+
+        if (!isMarked(sFlags)) {
+          return true;
         }
 
-        continue;
-      }
+        // the slot is being migrated to the next generation and can't be relocated any more
+        if (source instanceof Forwarding) {
+          flags[table].compareAndSet(index, sFlags, unmark(sFlags));
+          return false;
+        }
 
-      if (findResult.table == 1) {
+        // read destination, which whoever marked the slot has chosen
+        Entry<K, V> dest;
+        int destTable = destination(sFlags);
+        int destIdx = indexFor(hasher.hash(source.getKey()), destTable);
+        int dFlags = -1;
+
+        do {
+          dest = tables[destTable].get(destIdx);
+          f = dFlags;
+          dFlags = flags[destTable].get(destIdx);
+        } while (f != dFlags);
+
+        int sourceTs = timestamp(sFlags);
+        int destTs = timestamp(dFlags);
+
+        if (dest == null) {
+          int newTs = Math.max(sourceTs, destTs) + 1;
+          if (tables[table].get(index) != source) {
+            continue;
+          }
 
-        // not sure why we need this:
-        if (tables[0].get(idx1) != findResult.e1) {
-          continue;
+          // logged before the entry can be found in the destination, see EntryIterator
+          logRelocation(this, source, index * tablesCount + table);
+          if (!tables[destTable].compareAndSet(destIdx, null, source)) {
+            continue;
+          }
+          flags[destTable].compareAndSet(destIdx, dFlags, updateTimestamp(dFlags, newTs));
+          dest = source;
         }
 
-        if (tables[1]
-            .compareAndSet(idx2, findResult.e2, null)) {
-          return findResult.e2.getValue();
+        // the entry is in the destination, whoever has put it there
+        if (source == dest) {
+          clearSource(table, index, source, sFlags);
+          return true;
         }
 
-        continue;
+        // unmarking
+        flags[table].compareAndSet(index, sFlags, unmark(sFlags));
+        return false;
       }
-
-      return null;
     }
-  }
 
-  private void deleteDuplicate(Entry<K, V> e2, int idx2) {
-    tables[0].compareAndSet(idx2, e2, null);
-  }
+    /**
+     * Clears the source slot of an entry that has been copied to its destination. The timestamp
+     * of the slot is incremented while the entry is still there, so a lookup that finds the slot
+     * empty also sees the new timestamp and reads the slots of the key once more. The slot stays
+     * marked until it is cleared, and unmarking increments the timestamp once more, so that a
+     * helper that is late finds the flags changed and leaves the slot alone.
+     *
+     * <p>A helper can still be delayed between checking the flags and clearing the slot, while
+     * the entry is moved on and back into this slot. If the entry is then in none of its other
+     * slots, it is put back.
+     */
+    private void clearSource(int table, int index, Entry<K, V> source, int sFlags) {
+      int moving = updateTimestamp(sFlags, timestamp(sFlags) + 1);
+      flags[table].compareAndSet(index, sFlags, moving);
+      if (flags[table].get(index) != moving) {
+        return;
+      }
 
-  @Override
-  public V get(Object key) {
-    int idx1 = indexFor(hash1(key));
-    int idx2 = 0;
+      if (tables[table].compareAndSet(index, source, null) && !isInOtherSlot(source, table)) {
+        tables[table].compareAndSet(index, null, source);
+      }
+      flags[table].compareAndSet(index, moving,
+                                 updateTimestamp(unmark(moving), timestamp(moving) + 1));
+    }
+
+    /**
+     * @return the first slot, in the order of {@link EntryIterator}, other than the given one, in
+     * which the entry is as well, or -1
+     */
+    int otherSlot(Entry<K, V> e, int table) {
+      long h = hasher.hash(e.key);
+      for (int t = 0; t < tables.length; t++) {
+        int idx = indexFor(h, t);
+        if (t != table && unwrap(tables[t].get(idx)) == e) {
+          return idx * tables.length + t;
+        }
+      }
+      return -1;
+    }
 
-    Entry<K, V> e1;
-    Entry<K, V> e2;
-    int e1Flags = -1;
-    int e2Flags = -1;
+    private boolean isInOtherSlot(Entry<K, V> e, int table) {
+      long h = hasher.hash(e.key);
+      for (int t = 0; t < tables.length; t++) {
+        if (t != table && unwrap(tables[t].get(indexFor(h, t))) == e) {
+          return true;
+        }
+      }
+      return false;
+    }
 
-    int e1PrevFlags;
-    int e2PrevFlags;
+    private void deleteDuplicate(int table, int index, Entry<K, V> e) {
+      tables[table].compareAndSet(index, e, null);
+    }
 
-    boolean first = true;
+    /**
+     * Counts a new entry, and starts growing the map if the entry couldn't be put without a
+     * relocation and the tables are getting full. Checking the load only then keeps the counter
+     * from being summed on every put.
+     *
+     * @param pathLength number of entries that were moved to make room for the new one, or -1 if
+     *                   it was put into the stash
+     */
+    private void inserted(boolean migrating, int pathLength) {
+      if (migrating) {
+        return;
+      }
+      addCount(1);
+      if (metrics != null) {
+        if (pathLength < 0) {
+          metrics.stashedEntries.increment();
+        } else {
+          metrics.recordPathLength(pathLength);
+        }
+      }
+      if (pathLength != 0 && !evicting && capacity < MAXIMUM_CAPACITY
+          && mappingCount() > maxLoadFactor * tablesCount * capacity) {
+        startResize();
+      }
+    }
 
-    while (true) {
-      e1PrevFlags = e1Flags;
-      e2PrevFlags = e2Flags;
-      int f;
+    void startResize() {
+      if (next.get() != null) {
+        return;
+      }
+      if (capacity >= MAXIMUM_CAPACITY) {
+        throw new IllegalStateException("rehashing needed");
+      }
+      Hasher reseeded = hasher.withSeed(ThreadLocalRandom.current().nextLong());
+      if (next.compareAndSet(null, new Generation(capacity << 1, reseeded)) && metrics != null) {
+        metrics.resizes.increment();
+      }
+    }
 
-      do {
-        e1 = tables[0].get(idx1);
-        f = e1Flags;
-        e1Flags = flags[0].get(idx1);
-      } while (f != e1Flags);
+    boolean isTransferred() {
+      return transferred.get() >= capacity;
+    }
 
-      if (e1 != null && key.equals(e1.key)) {
-        return e1.getValue();
+    /**
+     * Migrates the next chunk of slots that no other thread has taken yet.
+     */
+    void transferChunk() {
+      if (transferIndex.get() >= capacity) {
+        return;
       }
 
-      if (first) {
-        idx2 = indexFor(hash2(key));
+      int start = transferIndex.getAndAdd(TRANSFER_CHUNK);
+      if (start >= capacity) {
+        return;
       }
 
-      do {
-        e2 = tables[1].get(idx2);
-        f = e2Flags;
-        e2Flags = flags[1].get(idx2);
-      } while (f != e2Flags);
+      // before any chunk is counted, so that the stash is empty once the generation is left
+      transferStash();
 
-      if (e2 != null && key.equals(e2.key)) {
-        return e2.getValue();
+      int end = Math.min(start + TRANSFER_CHUNK, capacity);
+      for (int i = start; i < end; i++) {
+        for (int t = 0; t < tables.length; t++) {
+          transferSlot(tables[t], i, i * tables.length + t);
+        }
       }
 
-      if (first || !checkCounters(e1PrevFlags, e2PrevFlags, e1Flags, e2Flags)) {
-        first = false;
-        continue;
+      if (transferred.addAndGet(end - start) >= capacity) {
+        advance();
       }
-
-      return null;
     }
-  }
 
-  private FindResult internalFind(Object key) {
-    int idx1 = indexFor(hash1(key));
-    int idx2 = indexFor(hash2(key));
-    int table = -1;
-
-    Entry<K, V> e1;
-    Entry<K, V> e2;
-    int e1Flags = -1;
-    int e2Flags = -1;
+    void transferKey(Object key) {
+      long h = hasher.hash(key);
+      for (int t = 0; t < tables.length; t++) {
+        int idx = indexFor(h, t);
+        transferSlot(tables[t], idx, idx * tables.length + t);
+      }
+      transferStash();
+    }
 
-    int e1PrevFlags;
-    int e2PrevFlags;
+    private void transferStash() {
+      for (int i = 0; i < stash.length(); i++) {
+        transferSlot(stash, i, tables.length * capacity + i);
+      }
+    }
 
-    boolean first = true;
+    /**
+     * Moves the content of a slot to the next generation and leaves {@link #MOVED} in its place.
+     * While the entry is being copied the slot is frozen, so that nobody can update it in this
+     * generation; readers still see the frozen entry.
+     *
+     * @param slot the slot in the order of {@link EntryIterator}
+     */
+    private void transferSlot(AtomicReferenceArray<Entry<K, V>> t, int index, int slot) {
+      while (true) {
+        Entry<K, V> e = t.get(index);
+
+        if (e == MOVED) {
+          return;
+        }
 
-    while (true) {
-      e1PrevFlags = e1Flags;
-      e2PrevFlags = e2Flags;
-      int f;
+        if (e == null) {
+          if (t.compareAndSet(index, null, MOVED)) {
+            return;
+          }
+          continue;
+        }
 
-      do {
-        e1 = tables[0].get(idx1);
-        f = e1Flags;
-        e1Flags = flags[0].get(idx1);
-      } while (f != e1Flags);
-
-      if (e1 != null) {
-        if (isMarked(e1Flags)) {
-          helpRelocate(0, idx1, false);
-          first = true;
+        if (e instanceof Forwarding) {
+          // another thread is copying this entry
+          Thread.yield();
           continue;
         }
 
-        if (e1.key.equals(key)) {
-          table = 0;
+        if (t.compareAndSet(index, e, new Forwarding<K, V>(e))) {
+          // a removed or expired entry is left behind
+          if (e.value != REMOVED && !expire(e)) {
+            logRelocation(this, e, slot);
+            transferEntry(next.get(), e);
+          }
+          t.set(index, MOVED);
+          return;
         }
       }
+    }
 
-      do {
-        e2 = tables[1].get(idx2);
-        f = e2Flags;
-        e2Flags = flags[1].get(idx2);
-      } while (f != e2Flags);
-
-      if (e2 != null) {
-        if (isMarked(e2Flags)) {
-          helpRelocate(1, idx2, false);
-          first = true;
-          continue;
+    /**
+     * Clears the slots of removed and expired entries among {@code count} slots, starting from
+     * {@code from} modulo the number of slots. Slot {@code i} is {@code i / tablesCount} in the
+     * table {@code i % tablesCount}, as in {@link EntryIterator}. The stash is examined too.
+     *
+     * @return number of slots freed
+     */
+    int sweep(int from, int count) {
+      int slots = tables.length * capacity;
+      int index = Math.floorMod(from, slots);
+      int freed = 0;
+
+      for (int i = 0; i < count; i++, index = index + 1 < slots ? index + 1 : 0) {
+        int t = index % tables.length;
+        int idx = index / tables.length;
+        Entry<K, V> e = tables[t].get(idx);
+
+        // a marked entry is being relocated, and is cleared by whoever finishes the move
+        if (e != null && !(e instanceof Forwarding) && !isMarked(flags[t].get(idx))
+            && (e.value == REMOVED || expire(e)) && tables[t].compareAndSet(idx, e, null)) {
+          freed++;
         }
+      }
 
-        if (e2.key.equals(key)) {
-          if (table == 0) { // already found
-            deleteDuplicate(e2, idx2);
-          } else {
-            table = 1;
+      if (stashed.get() > 0) {
+        for (int i = 0; i < stash.length(); i++) {
+          Entry<K, V> e = stash.get(i);
+          if (e != null && !(e instanceof Forwarding) && (e.value == REMOVED || expire(e))
+              && stash.compareAndSet(i, e, null)) {
+            stashed.decrementAndGet();
+            freed++;
           }
         }
       }
+      return freed;
+    }
 
-      if (table >= 0) {
-        return new FindResult(table, e1, e2);
-      }
+    /**
+     * @return index in the given table for a key with the given 64-bit hash
+     */
+    int indexFor(long hash, int table) {
+      return Hasher.tableHash(hash, table) & (capacity - 1);
+    }
+  }
 
-      if (first || !checkCounters(e1PrevFlags, e2PrevFlags, e1Flags, e2Flags)) {
-        first = false;
-        continue;
-      }
+  /**
+   * Checks that no relocation has touched the slots of a key between two consecutive reads. The
+   * timestamp of a slot never decreases, so the sums of the timestamps of the slots are equal
+   * only if each slot still has its previous timestamp.
+   */
+  private boolean checkCounters(long stamps, long newStamps) {
 
-      return new FindResult(-1, e1, e2);
+    boolean result = stamps == newStamps;
+    if (!result && metrics != null) {
+      metrics.lookupRetries.increment();
     }
+
+    return result;
   }
 
-  @Override
-  public Set<Map.Entry<K, V>> entrySet() {
-    return null;
+  private static <K, V> Entry<K, V> unwrap(Entry<K, V> e) {
+    return e instanceof Forwarding ? ((Forwarding<K, V>) e).entry : e;
   }
 
   private static class Entry<K, V> implements Map.Entry<K, V> {
@@ -456,7 +2227,29 @@ public class ThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
     }
 
     private final K key;
-    private volatile V value;
+
+    /**
+     * The value, or {@link #REMOVED}. Replaced with {@link #VALUE}.
+     */
+    volatile Object value;
+
+    /**
+     * Whether the entry has been read since a cache last considered evicting it. It is only a
+     * hint, so it is neither volatile nor updated atomically.
+     */
+    boolean referenced;
+
+    /**
+     * Value of {@link System#nanoTime()} at which the entry expires, if the map has a time to
+     * live. Renewed after each new value is set, and applies only to {@link #renewedValue}.
+     */
+    volatile long expiresAt;
+
+    /**
+     * Value for which {@link #expiresAt} was last renewed. Any other value has just been set, and
+     * doesn't expire before the writer that set it renews the entry.
+     */
+    volatile Object renewedValue;
 
     @Override
     public K getKey() {
@@ -464,47 +2257,44 @@ public class ThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public V getValue() {
-      return value;
+      return (V) value;
     }
 
     @Override
     public V setValue(V value) {
-      V old = this.value;
-      this.value = value;
-      return old;
+      throw new UnsupportedOperationException();
     }
   }
 
-  private class FindResult {
+  /**
+   * Occupies a slot of a generation that is being migrated: either a frozen entry that is being
+   * copied to the next generation, or {@link #MOVED} once the copying is done.
+   */
+  private static final class Forwarding<K, V> extends Entry<K, V> {
 
-    private final int table;
-    private final Entry<K, V> e1;
-    private final Entry<K, V> e2;
+    private final Entry<K, V> entry;
 
-    public FindResult(int table, Entry<K, V> e1, Entry<K, V> e2) {
-      this.table = table;
-      this.e1 = e1;
-      this.e2 = e2;
+    Forwarding(Entry<K, V> entry) {
+      super(entry == null ? null : entry.key, null);
+      this.entry = entry;
     }
   }
 
-  static int hash2(Object key) {
-    int h = key.hashCode();
-
-    return h ^ (h >>> 16);
-  }
-
-  static int hash1(Object key) {
-    int h = key.hashCode();
-
-    h ^= (h >>> 20) ^ (h >>> 12);
-    return h ^ (h >>> 7) ^ (h >>> 4);
+  static int tableSizeFor(int capacity) {
+    int n = 1;
+    while (n < capacity && n < MAXIMUM_CAPACITY) {
+      n <<= 1;
+    }
+    return n;
   }
 
-  int indexFor(int h) {
-    return h & (capacity - 1);
-  }
+  /*
+   * Flags of a slot: the lowest bit marks an entry that is being moved, the next three bits hold
+   * the table it's being moved to, and the rest is the timestamp, which is incremented every time
+   * an entry leaves the slot.
+   */
 
   static boolean isMarked(int flags) {
     return (flags & 1) == 1;
@@ -514,20 +2304,34 @@ public class ThreadSafeCuckooHashMap<K, V> extends AbstractMap<K, V> {
     return flags | 1;
   }
 
+  /**
+   * Marks the entry of a slot as being moved to the given table.
+   */
+  static int mark(int flags, int destTable) {
+    return (flags & ~DESTINATION_MASK) | destTable << 1 | 1;
+  }
+
   static int markBit(int flags) {
     return flags & 1;
   }
 
   static int unmark(int flags) {
-    return flags ^ 1;
+    return flags & ~(DESTINATION_MASK | 1);
+  }
+
+  /**
+   * @return table that the entry of a marked slot is being moved to
+   */
+  static int destination(int flags) {
+    return (flags & DESTINATION_MASK) >> 1;
   }
 
   static int timestamp(int flags) {
-    return flags >> 1;
+    return flags >> TIMESTAMP_SHIFT;
   }
 
   static int updateTimestamp(int flags, int newTs) {
-    return newTs << 1 | (flags & 1);
+    return newTs << TIMESTAMP_SHIFT | (flags & (DESTINATION_MASK | 1));
   }
 
 }
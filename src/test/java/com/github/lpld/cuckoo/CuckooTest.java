@@ -2,53 +2,1732 @@ package com.github.lpld.cuckoo;
 
 import org.junit.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author leopold
+ * @since 3/02/15
+ */
+public class CuckooTest {
+
+  @Test
+  public void testSimpleScenario() {
+    Map<String, String> simpleMap = new NotThreadSafeCuckooHashMap<String, String>();
+//
+    String key1 = "1";
+//    String key2 = "ABC";
+//    String key3 = "$%^&*";
+//    String key4 = "zxcvbnm,.asdfghjkl;qwertyuio";
+//
+//    assertNull(simpleMap.get(key1));
+//    assertNull(simpleMap.get(key2));
+//    assertNull(simpleMap.get(key3));
+//    assertNull(simpleMap.get(key4));
+
+    // simple scenario
+    simpleMap.put(key1, "value11");
+    assertEquals("value11", simpleMap.get(key1));
+
+    String prev = simpleMap.put(key1, "value12");
+    assertEquals("value11", prev);
+    assertEquals("value12", simpleMap.get(key1));
+
+    String prev2 = simpleMap.remove(key1);
+    assertEquals("value12", prev2);
+    assertNull(simpleMap.get(key1));
+
+
+  }
+
+  @Test
+  public void testNotThreadSafeGrowth() {
+    checkGrowth(new NotThreadSafeCuckooHashMap<String, String>(3));
+    checkGrowth(new NotThreadSafeCuckooHashMap<String, String>(16, 0.45f, true));
+  }
+
+  @Test
+  public void testBucketizedLoad() {
+    BucketizedCuckooHashMap<String, String> map = new BucketizedCuckooHashMap<String, String>(1024);
+
+    // 90% of 2 tables * 1024 buckets * 4 slots must fit without growing the tables
+    final int itcount = 7372;
+
+    for (int i = 0; i < itcount; i++) {
+      assertNull(map.put("key_" + i, "value_" + i));
+    }
+    assertEquals(1024, map.capacity);
+
+    for (int i = 0; i < itcount; i++) {
+      assertEquals("value_" + i, map.get("key_" + i));
+    }
+
+    checkGrowth(new BucketizedCuckooHashMap<String, String>(1, 2));
+
+    // keys with the same hash have the same tag, and are told apart by equals
+    Hasher constant = new Hasher() {
+      @Override
+      public long hash(Object key) {
+        return 0;
+      }
+
+      @Override
+      public Hasher withSeed(long seed) {
+        return this;
+      }
+    };
+    BucketizedCuckooHashMap<String, String> sameTags =
+        new BucketizedCuckooHashMap<String, String>(16, 4, 0.9f, constant);
+    for (int i = 0; i < 8; i++) {
+      assertNull(sameTags.put("key_" + i, "value_" + i));
+    }
+    for (int i = 0; i < 8; i++) {
+      assertEquals("value_" + i, sameTags.get("key_" + i));
+    }
+    assertNull(sameTags.get("key_8"));
+    assertEquals("value_3", sameTags.remove("key_3"));
+    assertNull(sameTags.get("key_3"));
+    assertEquals("value_4", sameTags.get("key_4"));
+
+    // the slots of a table must not overflow an int
+    try {
+      new BucketizedCuckooHashMap<String, String>(1 << 29, 4);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testPathSearchLimits() {
+    NotThreadSafeCuckooHashMap<String, String> simple = new NotThreadSafeCuckooHashMap<String, String>();
+    simple.setMaxPathLength(1);
+    simple.setMaxSearchNodes(2);
+    checkGrowth(simple);
+
+    BucketizedCuckooHashMap<String, String> bucketized = new BucketizedCuckooHashMap<String, String>();
+    bucketized.setMaxPathLength(2);
+    checkGrowth(bucketized);
+
+    ThreadSafeCuckooHashMap<String, String> threadSafe = new ThreadSafeCuckooHashMap<String, String>();
+    threadSafe.setMaxPathLength(3);
+    threadSafe.setMaxSearchNodes(4);
+    for (int i = 0; i < 10000; i++) {
+      assertNull(threadSafe.put("key_" + i, "value_" + i));
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertEquals("value_" + i, threadSafe.get("key_" + i));
+    }
+  }
+
+  @Test
+  public void testCollidingHashCodes() {
+    // all combinations of "Aa" and "BB" have the same String.hashCode()
+    List<String> keys = new ArrayList<String>();
+    keys.add("");
+    for (int i = 0; i < 10; i++) {
+      List<String> longer = new ArrayList<String>();
+      for (String k : keys) {
+        longer.add(k + "Aa");
+        longer.add(k + "BB");
+      }
+      keys = longer;
+    }
+    assertEquals(keys.get(0).hashCode(), keys.get(keys.size() - 1).hashCode());
+
+    List<Map<String, String>> maps = Arrays.<Map<String, String>>asList(
+        new NotThreadSafeCuckooHashMap<String, String>(),
+        new BucketizedCuckooHashMap<String, String>(),
+        new ThreadSafeCuckooHashMap<String, String>());
+
+    for (Map<String, String> map : maps) {
+      for (String k : keys) {
+        assertNull(map.put(k, "v" + k));
+      }
+      for (String k : keys) {
+        assertEquals("v" + k, map.get(k));
+      }
+    }
+  }
+
+  @Test
+  public void testPrimitiveMaps() {
+    LongLongCuckooMap longLong = new LongLongCuckooMap(1, 0.5f, -1);
+    LongObjectCuckooMap<String> longObject = new LongObjectCuckooMap<String>(1);
+    IntObjectCuckooMap<String> intObject = new IntObjectCuckooMap<String>(1);
+
+    int n = 50000;
+    for (int i = -n; i < n; i++) {
+      long key = (long) i * 31;
+      assertEquals(-1, longLong.put(key, i));
+      assertNull(longObject.put(key, "v" + i));
+      assertNull(intObject.put(i, "v" + i));
+    }
+    assertEquals(2 * n, longLong.size());
+    assertEquals(2 * n, longObject.size());
+    assertEquals(2 * n, intObject.size());
+
+    for (int i = -n; i < n; i += 2) {
+      assertEquals(i, longLong.remove((long) i * 31));
+      assertEquals("v" + i, longObject.remove((long) i * 31));
+      assertEquals("v" + i, intObject.remove(i));
+    }
+
+    for (int i = -n; i < n; i++) {
+      long key = (long) i * 31;
+      boolean removed = (i - n) % 2 == 0;
+      assertEquals(removed ? -1 : i, longLong.get(key));
+      assertEquals(removed ? null : "v" + i, longObject.get(key));
+      assertEquals(removed ? null : "v" + i, intObject.get(i));
+      assertEquals(!removed, intObject.containsKey(i));
+    }
+    assertEquals(n, longLong.size());
+    assertEquals(-1, longLong.get(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testOffHeapReadsDuringUpdates() throws InterruptedException {
+    final OffHeapLongLongCuckooMap map = new OffHeapLongLongCuckooMap(1, 0.5f, -1);
+    final int n = 200000;
+    final AtomicLong inserted = new AtomicLong();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+    int readersCount = 4;
+    ExecutorService service = Executors.newFixedThreadPool(readersCount);
+    final CountDownLatch end = new CountDownLatch(readersCount);
+
+    for (int i = 0; i < readersCount; i++) {
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Random random = new Random();
+            long max;
+            while ((max = inserted.get()) < n) {
+              if (max > 0) {
+                // every key inserted so far must be visible, however much the writer moves it
+                long key = random.nextInt((int) max);
+                assertEquals(key * 3, map.get(key));
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    for (long key = 0; key < n; key++) {
+      assertEquals(-1, map.put(key, key * 3));
+      inserted.set(key + 1);
+    }
+
+    end.await();
+    service.shutdown();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+
+    assertEquals(n, map.size());
+    for (long key = 0; key < n; key += 2) {
+      assertEquals(key * 3, map.remove(key));
+    }
+    for (long key = 0; key < n; key++) {
+      assertEquals(key % 2 == 0 ? -1 : key * 3, map.get(key));
+      assertEquals(key % 2 != 0, map.containsKey(key));
+    }
+    assertEquals(n / 2, map.size());
+  }
+
+  @Test
+  public void testMappedReopen() throws IOException {
+    Path file = Files.createTempFile("cuckoo", ".table");
+    try {
+      int n = 100000;
+      MappedLongLongCuckooMap map = MappedLongLongCuckooMap.create(file, n, -1);
+      for (long key = 0; key < n; key++) {
+        assertEquals(-1, map.put(key, key * 3));
+      }
+      map.close();
+
+      map = MappedLongLongCuckooMap.open(file);
+      assertEquals(n, map.size());
+      for (long key = 0; key < n; key++) {
+        assertEquals(key * 3, map.get(key));
+      }
+      for (long key = 0; key < n; key += 2) {
+        assertEquals(key * 3, map.remove(key));
+      }
+      map.close();
+
+      // reopening without a checkpoint scans the tables and counts the entries again
+      markChanged(file);
+      map = MappedLongLongCuckooMap.open(file);
+      assertEquals(n / 2, map.size());
+      for (long key = 0; key < n; key++) {
+        assertEquals(key % 2 == 0 ? -1 : key * 3, map.get(key));
+      }
+      map.close();
+
+      MappedLongLongCuckooMap small = MappedLongLongCuckooMap.create(file, 4, -1);
+      try {
+        for (long key = 1; key <= 100; key++) {
+          small.put(key, key);
+        }
+        fail("a table of a fixed capacity must not grow");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      small.close();
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void testMappedRecovery() throws IOException {
+    Path file = Files.createTempFile("cuckoo", ".table");
+    try {
+      int capacity = 64;
+      MappedLongLongCuckooMap map = MappedLongLongCuckooMap.create(file, capacity, -1);
+      OffHeapLongLongCuckooMap.Tables t = map.tables;
+
+      // keys are put until one goes to the second table, which is empty until then, so that no
+      // put can run out of room whatever the seed
+      long n = 0;
+      long moved = 0;
+      while (moved == 0) {
+        n++;
+        map.put(n, n * 3);
+        for (long key = 1; key <= n; key++) {
+          if (t.key(1, t.indexFor(t.hash(key), 1)) == key) {
+            moved = key;
+          }
+        }
+      }
+
+      // the slot of that key in the first table is freed
+      int index0 = t.indexFor(t.hash(moved), 0);
+      assertEquals(t.key(0, index0) * 3, map.remove(t.key(0, index0)));
+
+      // a key that isn't in the map, and whose slot in the first table is free
+      long absent = 100;
+      while (t.key(0, t.indexFor(t.hash(absent), 0)) != OffHeapLongLongCuckooMap.EMPTY) {
+        absent++;
+      }
+      int absentIndex = t.indexFor(t.hash(absent), 0);
+      map.close();
+
+      // the process stopped while it was moving the key to the first table, after it had written
+      // the key but not yet the value
+      writeSlot(file, capacity, 0, index0, ThreadSafeCuckooHashMap.mark(0), moved, 12345);
+      markChanged(file);
+      map = MappedLongLongCuckooMap.open(file);
+      assertEquals(n - 1, map.size());
+      assertEquals(moved * 3, map.get(moved));
+      map.close();
+
+      // the process stopped while it was putting a new key
+      writeSlot(file, capacity, 0, absentIndex, ThreadSafeCuckooHashMap.mark(0), absent, 12345);
+      markChanged(file);
+      map = MappedLongLongCuckooMap.open(file);
+      assertEquals(n - 1, map.size());
+      assertEquals(-1, map.get(absent));
+      for (long key = 1; key <= n; key++) {
+        assertEquals(map.containsKey(key) ? key * 3 : -1, map.get(key));
+      }
+      map.close();
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Sets the state of a closed table file as if it had been changed after its last checkpoint.
+   */
+  private static void markChanged(Path file) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    try {
+      ByteBuffer state = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0, 1);
+      channel.write(state, MappedLongLongCuckooMap.STATE_OFFSET);
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Overwrites a slot of a closed table file.
+   */
+  private static void writeSlot(Path file, int capacity, int table, int index, int flags, long key,
+                                long value) throws IOException {
+    ByteBuffer slot = ByteBuffer.allocate(OffHeapLongLongCuckooMap.SLOT_SIZE)
+        .order(ByteOrder.nativeOrder());
+    slot.putInt(OffHeapLongLongCuckooMap.FLAGS_OFFSET, flags);
+    slot.putLong(OffHeapLongLongCuckooMap.KEY_OFFSET, key);
+    slot.putLong(OffHeapLongLongCuckooMap.VALUE_OFFSET, value);
+
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE);
+    try {
+      channel.write(slot, MappedLongLongCuckooMap.HEADER_SIZE
+                          + ((long) table * capacity + index) * OffHeapLongLongCuckooMap.SLOT_SIZE);
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test
+  public void testCollectionViews() {
+    List<Map<String, String>> maps = Arrays.<Map<String, String>>asList(
+        new NotThreadSafeCuckooHashMap<String, String>(),
+        new BucketizedCuckooHashMap<String, String>(),
+        new ThreadSafeCuckooHashMap<String, String>());
+
+    for (Map<String, String> map : maps) {
+      Map<String, String> expected = new HashMap<String, String>();
+      for (int i = 0; i < 1000; i++) {
+        map.put("key_" + i, "value_" + i);
+        expected.put("key_" + i, "value_" + i);
+      }
+
+      assertEquals(expected, map);
+      assertEquals(map, expected);
+      assertEquals(expected.hashCode(), map.hashCode());
+      assertEquals(expected.keySet(), map.keySet());
+      assertEquals(new HashSet<String>(expected.values()), new HashSet<String>(map.values()));
+
+      for (Iterator<Map.Entry<String, String>> it = map.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, String> e = it.next();
+        int i = Integer.parseInt(e.getKey().substring(4));
+        if (i % 2 == 0) {
+          it.remove();
+          expected.remove(e.getKey());
+        } else {
+          e.setValue("new_" + i);
+          expected.put(e.getKey(), "new_" + i);
+        }
+      }
+      assertEquals(expected, map);
+      assertEquals(500, map.size());
+
+      map.clear();
+      assertTrue(map.isEmpty());
+    }
+  }
+
+  @Test
+  public void testIterationDuringRelocations() throws InterruptedException {
+    final ThreadSafeCuckooHashMap<String, String> map = new ThreadSafeCuckooHashMap<String, String>(4);
+    final int stable = 2000;
+    for (int i = 0; i < stable; i++) {
+      map.put("stable_" + i, "value_" + i);
+    }
+
+    int threadsCount = 4;
+    final int iterations = 20000;
+    ExecutorService service = Executors.newFixedThreadPool(threadsCount);
+    final CountDownLatch end = new CountDownLatch(threadsCount);
+
+    for (int i = 0; i < threadsCount; i++) {
+      final int ii = i;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < iterations; j++) {
+              map.put("key_" + ii + "_" + j, "value_" + j);
+            }
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    do {
+      // the keys that are in the map all the time must be returned exactly once
+      Map<String, Integer> counts = new HashMap<String, Integer>();
+      for (Map.Entry<String, String> e : map.entrySet()) {
+        Integer count = counts.get(e.getKey());
+        counts.put(e.getKey(), count == null ? 1 : count + 1);
+      }
+      for (int i = 0; i < stable; i++) {
+        assertEquals(Integer.valueOf(1), counts.get("stable_" + i));
+      }
+    } while (end.getCount() > 0);
+
+    end.await();
+    service.shutdown();
+    assertEquals(stable + threadsCount * iterations, map.size());
+  }
+
+  @Test
+  public void testIterationDuringWrites() throws InterruptedException {
+    checkIterationDuringWrites(new ThreadSafeCuckooHashMap<String, String>(4));
+    checkIterationDuringWrites(
+        new StripedCuckooHashMap<String, String>(1, 2, 4, new SeededHasher()));
+  }
+
+  /**
+   * Iterates over the map while writers keep putting and removing keys until all iterations are
+   * done. The keys that are in the map all the time must be returned exactly once.
+   */
+  private void checkIterationDuringWrites(final Map<String, String> map)
+      throws InterruptedException {
+    final int stable = 50000;
+    for (int i = 0; i < stable; i++) {
+      map.put("stable_" + i, "value_" + i);
+    }
+
+    int threadsCount = 4;
+    final int window = 1000;
+    ExecutorService service = Executors.newFixedThreadPool(threadsCount);
+    final CountDownLatch stop = new CountDownLatch(1);
+    final CountDownLatch end = new CountDownLatch(threadsCount);
+
+    for (int i = 0; i < threadsCount; i++) {
+      final int ii = i;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; stop.getCount() > 0; j++) {
+              map.put("key_" + ii + "_" + j, "value_" + j);
+              if (j >= window) {
+                map.remove("key_" + ii + "_" + (j - window));
+              }
+            }
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    try {
+      for (int k = 0; k < 10; k++) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, String> e : map.entrySet()) {
+          Integer count = counts.get(e.getKey());
+          counts.put(e.getKey(), count == null ? 1 : count + 1);
+        }
+        for (int i = 0; i < stable; i++) {
+          assertEquals(Integer.valueOf(1), counts.get("stable_" + i));
+        }
+      }
+    } finally {
+      stop.countDown();
+    }
+
+    end.await();
+    service.shutdown();
+    for (int i = 0; i < stable; i++) {
+      assertEquals("value_" + i, map.get("stable_" + i));
+    }
+  }
+
+  @Test
+  public void testConcurrentSize() throws InterruptedException {
+    for (boolean exact : new boolean[]{false, true}) {
+      final ThreadSafeCuckooHashMap<String, String> map =
+          new ThreadSafeCuckooHashMap<String, String>(4, new SeededHasher(), exact);
+      assertTrue(map.isEmpty());
+
+      int threadsCount = 8;
+      final int iterations = 5000;
+      ExecutorService service = Executors.newFixedThreadPool(threadsCount);
+      final CountDownLatch end = new CountDownLatch(threadsCount);
+
+      for (int i = 0; i < threadsCount; i++) {
+        final int ii = i;
+        service.submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < iterations; j++) {
+                map.put("key_" + ii + "_" + j, "value_" + j);
+                // replacing a value doesn't change the size
+                map.put("key_" + ii + "_" + j, "new_" + j);
+              }
+              for (int j = 0; j < iterations; j += 2) {
+                map.remove("key_" + ii + "_" + j);
+                map.remove("key_" + ii + "_" + j);
+              }
+            } finally {
+              end.countDown();
+            }
+          }
+        });
+      }
+
+      end.await();
+      service.shutdown();
+
+      assertEquals(threadsCount * iterations / 2, map.size());
+      assertEquals(threadsCount * iterations / 2, map.mappingCount());
+      assertEquals(threadsCount * iterations / 2, map.entrySet().size());
+    }
+  }
+
+  @Test
+  public void testAllocationFreeUpdates() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported()
+        && threads.isThreadAllocatedMemoryEnabled());
+
+    ThreadSafeCuckooHashMap<String, String> map = new ThreadSafeCuckooHashMap<String, String>();
+    int n = 10000;
+    String[] keys = new String[n];
+    String[] values = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = "key_" + i;
+      values[i] = "value_" + i;
+      map.put(keys[i], values[i]);
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long allocated = 0;
+    for (int round = 0; round < 20; round++) {
+      long before = threads.getThreadAllocatedBytes(threadId);
+      for (int i = 0; i < n; i++) {
+        map.get(keys[i]);
+        map.put(keys[i], values[n - 1 - i]);
+      }
+      allocated = threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    // a few bytes may come from the measurement itself, however many updates there were
+    assertTrue("allocated " + allocated + " bytes", allocated <= 64);
+  }
+
+  @Test
+  public void testStash() {
+    // keys starting with "c" all share the same two slots, whatever the capacity and the seed
+    final Hasher seeded = new SeededHasher();
+    Hasher colliding = new Hasher() {
+      @Override
+      public long hash(Object key) {
+        return ((String) key).startsWith("c") ? 0 : seeded.hash(key);
+      }
+
+      @Override
+      public Hasher withSeed(long seed) {
+        return this;
+      }
+    };
+
+    NotThreadSafeCuckooHashMap<String, String> simple =
+        new NotThreadSafeCuckooHashMap<String, String>(16, 0.5f, false, colliding);
+    simple.setStashSize(2);
+    for (int i = 0; i < 4; i++) {
+      assertNull(simple.put("c" + i, "value_" + i));
+    }
+    assertEquals(16, simple.capacity);
+    assertEquals(2, simple.stashSize);
+    assertEquals("value_3", simple.put("c3", "value_33"));
+    assertEquals(4, new HashMap<String, String>(simple).size());
+
+    // a removal from the tables makes room for a stashed entry
+    assertEquals("value_0", simple.remove("c0"));
+    assertEquals(1, simple.stashSize);
+    assertNull(simple.get("c0"));
+
+    for (int i = 0; i < 1000; i++) {
+      assertNull(simple.put("key_" + i, "value_" + i));
+    }
+    for (int i = 1; i < 4; i++) {
+      assertEquals(i == 3 ? "value_33" : "value_" + i, simple.get("c" + i));
+    }
+    assertEquals(1003, simple.size());
+    for (Iterator<String> it = simple.keySet().iterator(); it.hasNext(); ) {
+      if (it.next().startsWith("c")) {
+        it.remove();
+      }
+    }
+    assertEquals(1000, simple.size());
+    assertEquals(1000, new HashMap<String, String>(simple).size());
+
+    CuckooMetrics metrics = new CuckooMetrics();
+    ThreadSafeCuckooHashMap<String, String> threadSafe =
+        new ThreadSafeCuckooHashMap<String, String>(16, colliding, false, metrics);
+    threadSafe.setStashSize(2);
+    for (int i = 0; i < 4; i++) {
+      assertNull(threadSafe.put("c" + i, "value_" + i));
+    }
+    assertEquals(2, metrics.getStashedEntries());
+    assertEquals(0, metrics.getResizes());
+    assertEquals(4, new HashMap<String, String>(threadSafe).size());
+    assertEquals("value_3", threadSafe.put("c3", "value_33"));
+    assertEquals("value_33", threadSafe.remove("c3"));
+    assertNull(threadSafe.get("c3"));
+
+    // the stashed entries are migrated when the map grows
+    for (int i = 0; i < 1000; i++) {
+      assertNull(threadSafe.put("key_" + i, "value_" + i));
+    }
+    assertTrue(metrics.getResizes() > 0);
+    for (int i = 0; i < 3; i++) {
+      assertEquals("value_" + i, threadSafe.get("c" + i));
+    }
+    assertEquals(1003, threadSafe.size());
+  }
+
+  @Test
+  public void testMoreTables() throws InterruptedException {
+    for (int tablesCount = 3; tablesCount <= 4; tablesCount++) {
+      float load = tablesCount == 3 ? 0.85f : 0.9f;
+      NotThreadSafeCuckooHashMap<String, String> map = new NotThreadSafeCuckooHashMap<String, String>(
+          1024, tablesCount, load, false, new SeededHasher());
+
+      // must fit without growing the tables
+      int n = (int) (load * tablesCount * 1024);
+      for (int i = 0; i < n; i++) {
+        assertNull(map.put("key_" + i, "value_" + i));
+      }
+      assertEquals(1024, map.capacity);
+      for (int i = 0; i < n; i += 2) {
+        assertEquals("value_" + i, map.remove("key_" + i));
+      }
+      for (int i = 0; i < n; i++) {
+        assertEquals(i % 2 == 0 ? null : "value_" + i, map.get("key_" + i));
+      }
+      assertEquals(n / 2, new HashMap<String, String>(map).size());
+      checkGrowth(new NotThreadSafeCuckooHashMap<String, String>(
+          1, tablesCount, 0.9f, false, new SeededHasher()));
+    }
+
+    checkConcurrentUpdates(
+        new ThreadSafeCuckooHashMap<String, String>(16, 3, new SeededHasher(), false, null));
+  }
+
+  @Test
+  public void testStripedMap() throws InterruptedException {
+    StripedCuckooHashMap<String, String> map = new StripedCuckooHashMap<String, String>(1024);
+
+    // 90% of 2 tables * 1024 buckets * 4 slots must fit without growing the tables
+    int n = 7372;
+    for (int i = 0; i < n; i++) {
+      assertNull(map.put("key_" + i, "value_" + i));
+    }
+    assertEquals(1024, map.current.capacity);
+    assertEquals(n, new HashMap<String, String>(map).size());
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertNull(map.get("key_0"));
+
+    checkGrowth(new StripedCuckooHashMap<String, String>(1, 2, 1, new SeededHasher()));
+    checkConcurrentUpdates(new StripedCuckooHashMap<String, String>(1, 2, 4, new SeededHasher()));
+  }
+
+  @Test
+  public void testBatchOperations() {
+    for (int tablesCount = 2; tablesCount <= 3; tablesCount++) {
+      NotThreadSafeCuckooHashMap<String, String> map = new NotThreadSafeCuckooHashMap<String, String>(
+          16, tablesCount, 0.5f, false, new SeededHasher());
+      Map<String, String> expected = new HashMap<String, String>();
+
+      // batches of new keys, keys that are already there and keys repeated within the batch
+      for (int round = 0; round < 3; round++) {
+        String[] keys = new String[100];
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+          keys[i] = "key_" + (round * 50 + i % 80);
+          values[i] = "value_" + round + "_" + i;
+          expected.put(keys[i], values[i]);
+        }
+        map.putAll(keys, values);
+        assertEquals(expected, new HashMap<String, String>(map));
+      }
+
+      String[] keys = new String[300];
+      String[] values = new String[keys.length];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = "key_" + i;
+      }
+      assertEquals(expected.size(), map.getAll(keys, values));
+      for (int i = 0; i < keys.length; i++) {
+        assertEquals(expected.get(keys[i]), values[i]);
+      }
+    }
+
+    ThreadSafeCuckooHashMap<String, String> threadSafe =
+        new ThreadSafeCuckooHashMap<String, String>(16, new SeededHasher(), false, null);
+    for (int i = 0; i < 1000; i += 2) {
+      threadSafe.put("key_" + i, "value_" + i);
+    }
+    String[] keys = new String[1000];
+    String[] values = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "key_" + i;
+    }
+    assertEquals(500, threadSafe.getAll(keys, values));
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i % 2 == 0 ? "value_" + i : null, values[i]);
+    }
+
+    try {
+      threadSafe.getAll(keys, new String[10]);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBulkLoad() {
+    int n = 50000;
+    Map<String, String> source = new HashMap<String, String>();
+    String[] keys = new String[n];
+    String[] values = new String[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = "key_" + i;
+      values[i] = "value_" + i;
+      source.put(keys[i], values[i]);
+    }
+
+    assertEquals(source, new HashMap<String, String>(ThreadSafeCuckooHashMap.from(source)));
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ThreadSafeCuckooHashMap<String, String> map = ThreadSafeCuckooHashMap.from(keys, values, pool);
+      assertEquals(n, map.size());
+      for (int i = 0; i < n; i++) {
+        assertEquals(values[i], map.get(keys[i]));
+      }
+
+      Map<String, String> expected = new HashMap<String, String>();
+      for (int i = 0; i < n; i += 10) {
+        expected.put(keys[i], values[i]);
+      }
+      map = ThreadSafeCuckooHashMap.from(expected.entrySet().stream(), pool);
+      assertEquals(expected, new HashMap<String, String>(map));
+
+      // the map keeps working as usual after it is loaded
+      assertEquals("value_0", map.put("key_0", "value"));
+      assertNull(map.put("key", "value"));
+      assertEquals(n / 10 + 1, map.size());
+
+      try {
+        ThreadSafeCuckooHashMap.from(keys, new String[1], pool);
+        fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCuckooFilter() {
+    int n = 100000;
+    CuckooFilter<String> filter = new CuckooFilter<String>(n, 0.01);
+    assertEquals(10, filter.fingerprintBits);
+    for (int i = 0; i < n; i++) {
+      assertTrue(filter.add("key_" + i));
+    }
+    assertEquals(n, filter.size());
+
+    int falsePositives = 0;
+    for (int i = 0; i < n; i++) {
+      assertTrue(filter.mightContain("key_" + i));
+      if (filter.mightContain("absent_" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue("False positives: " + falsePositives, falsePositives < n / 100);
+
+    // a key added twice stays in the filter until it is removed twice
+    assertTrue(filter.add("key_0"));
+    for (int i = 0; i < n; i += 2) {
+      assertTrue(filter.remove("key_" + i));
+    }
+    assertTrue(filter.mightContain("key_0"));
+    assertTrue(filter.remove("key_0"));
+    for (int i = 1; i < n; i += 2) {
+      assertTrue(filter.mightContain("key_" + i));
+    }
+    assertEquals(n / 2, filter.size());
+
+    // once full, a key that doesn't fit leaves the filter as it was
+    filter.clear();
+    assertTrue(filter.isEmpty());
+    int added = 0;
+    while (filter.add("key_" + added)) {
+      added++;
+    }
+    assertTrue("Load factor: " + filter.loadFactor(), filter.loadFactor() > 0.9);
+    for (int i = 0; i < added; i++) {
+      assertTrue(filter.mightContain("key_" + i));
+    }
+    assertEquals(added, filter.size());
+
+    // fingerprints that span two words of the array
+    CuckooFilter<String> precise = new CuckooFilter<String>(1000, 1e-8);
+    assertEquals(30, precise.fingerprintBits);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(precise.add("key_" + i));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(precise.mightContain("key_" + i));
+      assertTrue(!precise.mightContain("absent_" + i));
+    }
+
+    try {
+      new CuckooFilter<String>(1000, 1e-10);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testConcurrentCuckooFilter() throws InterruptedException {
+    // 16384 buckets of 4 slots, filled up to 85% so that many fingerprints are moved
+    final ConcurrentCuckooFilter<String> filter = new ConcurrentCuckooFilter<String>(40000);
+    assertEquals(16384, filter.capacity);
+    final int stable = 16000;
+    for (int i = 0; i < stable; i++) {
+      assertTrue(filter.add("stable_" + i));
+    }
+
+    final int threads = 4;
+    final int perThread = 10000;
+    final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < perThread; i++) {
+              if (!filter.add("key_" + thread + "_" + i)) {
+                errors.add("Not added: key_" + thread + "_" + i);
+              }
+              if (!filter.mightContain("stable_" + (i * threads + thread) % stable)) {
+                errors.add("Lost: stable_" + (i * threads + thread) % stable);
+              }
+            }
+            for (int i = 0; i < perThread; i += 2) {
+              if (!filter.remove("key_" + thread + "_" + i)) {
+                errors.add("Not removed: key_" + thread + "_" + i);
+              }
+            }
+            for (int i = 1; i < perThread; i += 2) {
+              if (!filter.mightContain("key_" + thread + "_" + i)) {
+                errors.add("Lost: key_" + thread + "_" + i);
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    done.await();
+    executor.shutdown();
+
+    assertEquals(Collections.emptyList(), errors);
+    assertEquals(stable + threads * perThread / 2, filter.size());
+    for (int i = 0; i < stable; i++) {
+      assertTrue(filter.mightContain("stable_" + i));
+    }
+
+    filter.clear();
+    assertTrue(filter.isEmpty());
+    int falsePositives = 0;
+    for (int i = 0; i < stable; i++) {
+      if (filter.mightContain("stable_" + i)) {
+        falsePositives++;
+      }
+    }
+    assertEquals(0, falsePositives);
+
+    try {
+      new ConcurrentCuckooFilter<String>(1000, 0.001);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testConcurrentCuckooFilterMove() {
+    Hasher hasher = new SeededHasher();
+    ConcurrentCuckooFilter<String> filter = new ConcurrentCuckooFilter<String>(1000, 0.01, hasher);
+
+    int key = 0;
+    long h, fp;
+    int bucket1, bucket2;
+    do {
+      h = hasher.hash("key_" + key++);
+      fp = filter.fingerprint(h);
+      bucket1 = filter.bucketFor(h);
+      bucket2 = filter.otherBucket(bucket1, fp);
+    } while (bucket1 == bucket2);
+
+    // the fingerprint is in its second bucket when a lookup reads the first one
+    assertTrue(filter.store(bucket2, fp));
+    long word = filter.buckets.get(bucket1);
+
+    // then it is moved to the first bucket before the lookup reads the second one
+    assertTrue(filter.store(bucket1, fp));
+    assertTrue(filter.removeFrom(bucket2, fp));
+
+    assertTrue(filter.mightContain(fp, bucket1, bucket2, word));
+  }
+
+  @Test
+  public void testAtomicOperations() throws InterruptedException {
+    checkAtomicOperations(new ThreadSafeCuckooHashMap<String, Long>(16));
+    checkAtomicOperations(new StripedCuckooHashMap<String, Long>(1, 2, 4, new SeededHasher()));
+  }
+
+  private void checkAtomicOperations(final ConcurrentMap<String, Long> map)
+      throws InterruptedException {
+    final BiFunction<Long, Long, Long> sum = new BiFunction<Long, Long, Long>() {
+      @Override
+      public Long apply(Long a, Long b) {
+        return a + b;
+      }
+    };
+    final AtomicInteger calls = new AtomicInteger();
+    Function<String, Long> length = new Function<String, Long>() {
+      @Override
+      public Long apply(String key) {
+        calls.incrementAndGet();
+        return (long) key.length();
+      }
+    };
+    BiFunction<String, Long, Long> dropOdd = new BiFunction<String, Long, Long>() {
+      @Override
+      public Long apply(String key, Long value) {
+        return value != null && value % 2 == 0 ? value : null;
+      }
+    };
+
+    assertNull(map.putIfAbsent("a", 1L));
+    assertEquals(1L, (long) map.putIfAbsent("a", 2L));
+    assertNull(map.replace("b", 2L));
+    assertFalse(map.containsKey("b"));
+    assertEquals(1L, (long) map.replace("a", 3L));
+    assertFalse(map.replace("a", 1L, 4L));
+    assertTrue(map.replace("a", 3L, 4L));
+    assertFalse(map.remove("a", 3L));
+    assertTrue(map.remove("a", 4L));
+    assertTrue(map.isEmpty());
+
+    assertEquals(3L, (long) map.computeIfAbsent("abc", length));
+    assertEquals(3L, (long) map.computeIfAbsent("abc", length));
+    assertEquals(1, calls.get());
+    assertNull(map.computeIfPresent("b", dropOdd));
+    assertNull(map.computeIfPresent("abc", dropOdd));
+    assertNull(map.compute("abc", dropOdd));
+    assertEquals(5L, (long) map.merge("abc", 5L, sum));
+    assertEquals(12L, (long) map.merge("abc", 7L, sum));
+    assertEquals(12L, (long) map.compute("abc", dropOdd));
+    assertEquals(1, map.size());
+    map.clear();
+
+    // counters updated by several threads, while the map grows
+    final int threads = 4;
+    final int keys = 1000;
+    final int perThread = 20000;
+    final AtomicInteger inserted = new AtomicInteger();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    final CountDownLatch end = new CountDownLatch(threads);
+
+    for (int t = 0; t < threads; t++) {
+      final int tt = t;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < perThread; i++) {
+              map.merge("counter_" + (i * threads + tt) % keys, 1L, sum);
+              if (map.putIfAbsent("once_" + i % keys, (long) tt) == null) {
+                inserted.incrementAndGet();
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    end.await();
+    service.shutdown();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+
+    long total = 0;
+    for (int i = 0; i < keys; i++) {
+      total += map.get("counter_" + i);
+    }
+    assertEquals(threads * perThread, total);
+    assertEquals(keys, inserted.get());
+    assertEquals(2 * keys, map.size());
+  }
+
+  @Test
+  public void testNullsRejected() {
+    checkNullsRejected(new ThreadSafeCuckooHashMap<String, String>(16));
+    checkNullsRejected(new StripedCuckooHashMap<String, String>(1, 2, 4, new SeededHasher()));
+
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    try {
+      ThreadSafeCuckooHashMap.from(Collections.<String, String>singletonMap("k", null), pool);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      ThreadSafeCuckooHashMap.from(new String[]{"k"}, new String[]{null}, pool);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      ThreadSafeCuckooHashMap.from(new String[]{null}, new String[]{"v"}, pool);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+  }
+
+  private void checkNullsRejected(ConcurrentMap<String, String> map) {
+    BiFunction<String, String, String> concat = new BiFunction<String, String, String>() {
+      @Override
+      public String apply(String a, String b) {
+        return a + b;
+      }
+    };
+    BiFunction<String, String, String> drop = new BiFunction<String, String, String>() {
+      @Override
+      public String apply(String key, String value) {
+        return null;
+      }
+    };
+
+    try {
+      map.put("k", null);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.put(null, "v");
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.putIfAbsent("k", null);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    assertTrue(map.isEmpty());
+
+    // a put after the rejected ones isn't lost
+    assertNull(map.putIfAbsent("k", "v"));
+    assertEquals("v", map.get("k"));
+
+    try {
+      map.replace("k", null);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.replace("k", "v", null);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.replace("k", null, "w");
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.merge("k", null, concat);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.compute(null, concat);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    try {
+      map.entrySet().iterator().next().setValue(null);
+      fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+    assertEquals(Collections.singletonMap("k", "v"), new HashMap<String, String>(map));
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+    // a null result of a function removes the key instead of being put
+    assertNull(map.compute("absent", drop));
+    assertFalse(map.containsKey("absent"));
+    assertNull(map.merge("k", "w", drop));
+    assertFalse(map.containsKey("k"));
+    assertTrue(map.isEmpty());
+    assertEquals(0, map.size());
+  }
 
-/**
- * @author leopold
- * @since 3/02/15
- */
-public class CuckooTest {
+  @Test
+  public void testCache() throws InterruptedException {
+    CuckooMetrics metrics = new CuckooMetrics();
+    ThreadSafeCuckooHashMap<String, String> cache =
+        ThreadSafeCuckooHashMap.cache(1024, metrics);
+
+    // keys that are read all the time survive many more keys that are never read
+    for (int i = 0; i < 100; i++) {
+      cache.put("hot_" + i, "value_" + i);
+    }
+    int n = 20000;
+    int hotMisses = 0;
+    for (int i = 0; i < n; i++) {
+      assertNull(cache.put("key_" + i, "value_" + i));
+      if (cache.get("hot_" + i % 100) == null) {
+        cache.put("hot_" + i % 100, "value_" + i % 100);
+        hotMisses++;
+      }
+      assertTrue(cache.size() <= 1024);
+    }
+    assertTrue("Misses of hot keys: " + hotMisses, hotMisses < n / 50);
+
+    CuckooStats stats = metrics.snapshot();
+    assertEquals(0, stats.getResizes());
+    assertEquals(n + 100 + hotMisses - cache.size(), stats.getEvictions());
+    assertEquals(n - hotMisses, stats.getHits());
+    assertEquals(hotMisses, stats.getMisses());
+    assertTrue("Load factor: " + cache.size() / 1024.0, cache.size() > 900);
+    assertEquals(cache.size(), new HashMap<String, String>(cache).size());
+
+    // several threads keep filling the cache
+    final ThreadSafeCuckooHashMap<String, String> shared = ThreadSafeCuckooHashMap.cache(1024);
+    final int threads = 4;
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    final CountDownLatch end = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int tt = t;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              String key = "key_" + tt + "_" + i;
+              shared.put(key, key);
+              String value = shared.get(key);
+              assertTrue(value == null || value.equals(key));
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+    end.await();
+    service.shutdown();
+
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+    assertTrue(shared.size() <= 1024);
+    for (Map.Entry<String, String> e : shared.entrySet()) {
+      assertEquals(e.getKey(), e.getValue());
+    }
+    assertEquals(shared.size(), new HashMap<String, String>(shared).size());
+  }
 
   @Test
-  public void testSimpleScenario() {
-    Map<String, String> simpleMap = new NotThreadSafeCuckooHashMap<String, String>();
-//
-    String key1 = "1";
-//    String key2 = "ABC";
-//    String key3 = "$%^&*";
-//    String key4 = "zxcvbnm,.asdfghjkl;qwertyuio";
-//
-//    assertNull(simpleMap.get(key1));
-//    assertNull(simpleMap.get(key2));
-//    assertNull(simpleMap.get(key3));
-//    assertNull(simpleMap.get(key4));
+  public void testTimeToLive() throws InterruptedException {
+    CuckooMetrics metrics = new CuckooMetrics();
+    ThreadSafeCuckooHashMap<String, String> map =
+        new ThreadSafeCuckooHashMap<String, String>(16, new SeededHasher(), true, metrics);
+    map.setTimeToLive(200, TimeUnit.MILLISECONDS);
 
-    // simple scenario
-    simpleMap.put(key1, "value11");
-    assertEquals("value11", simpleMap.get(key1));
+    int n = 1000;
+    for (int i = 0; i < n; i++) {
+      map.put("key_" + i, "value_" + i);
+    }
+    assertEquals(n, map.size());
+    assertEquals("value_0", map.get("key_0"));
 
-    String prev = simpleMap.put(key1, "value12");
-    assertEquals("value11", prev);
-    assertEquals("value12", simpleMap.get(key1));
+    Thread.sleep(300);
+    map.put("fresh", "value");
 
-    String prev2 = simpleMap.remove(key1);
-    assertEquals("value12", prev2);
-    assertNull(simpleMap.get(key1));
+    // expired entries are neither returned nor iterated, and a lookup removes them
+    for (int i = 0; i < n / 2; i++) {
+      assertNull(map.get("key_" + i));
+    }
+    // the put may have reused the slot of another expired entry
+    long expired = metrics.snapshot().getExpirations();
+    assertTrue(expired >= n / 2);
+    assertEquals(n + 1 - expired, map.size());
+    assertEquals(Collections.singletonMap("fresh", "value"), new HashMap<String, String>(map));
+    assertNull(map.putIfAbsent("key_" + (n - 1), "again"));
+    assertEquals("again", map.get("key_" + (n - 1)));
+
+    // a sweep removes the rest
+    expired = metrics.snapshot().getExpirations();
+    assertEquals(n - expired, map.sweep(Integer.MAX_VALUE));
+    assertEquals(2, map.size());
+    assertEquals(n, metrics.snapshot().getExpirations());
+
+    // setting a value renews the time to live
+    map.put("renewed", "1");
+    Thread.sleep(120);
+    map.put("renewed", "2");
+    Thread.sleep(120);
+    assertEquals("2", map.get("renewed"));
+
+    // the slots of expired entries are reused instead of evicting live ones
+    ThreadSafeCuckooHashMap<String, String> cache = ThreadSafeCuckooHashMap.cache(64, metrics);
+    cache.setTimeToLive(100, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 64; i++) {
+      cache.put("old_" + i, "value");
+    }
+    Thread.sleep(150);
+    long evictions = metrics.getEvictions();
+    for (int i = 0; i < 32; i++) {
+      cache.put("new_" + i, "value");
+    }
+    assertEquals(evictions, metrics.getEvictions());
+
+    // a scheduled sweep empties the map in the background
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    ScheduledFuture<?> sweeping = map.scheduleSweep(executor, 10, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < n; i++) {
+      map.put("key_" + i, "value_" + i);
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!map.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    sweeping.cancel(false);
+    executor.shutdown();
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testFrozenMap() throws InterruptedException {
+    final int n = 10000;
+    NotThreadSafeCuckooHashMap<String, String> twoTables =
+        new NotThreadSafeCuckooHashMap<String, String>();
+    NotThreadSafeCuckooHashMap<String, String> fourTables =
+        new NotThreadSafeCuckooHashMap<String, String>(16, 4, 0.9f, false, new SeededHasher());
+    ThreadSafeCuckooHashMap<String, String> threadSafe =
+        new ThreadSafeCuckooHashMap<String, String>();
+    for (int i = 0; i < n; i++) {
+      twoTables.put("key_" + i, "value_" + i);
+      fourTables.put("key_" + i, "value_" + i);
+      threadSafe.put("key_" + i, "value_" + i);
+    }
+    twoTables.put("null", null);
+
+    final FrozenCuckooHashMap<String, String> frozen = threadSafe.freeze();
+    assertEquals(new HashMap<String, String>(threadSafe), frozen);
+    assertEquals(new HashMap<String, String>(fourTables), fourTables.freeze());
+
+    FrozenCuckooHashMap<String, String> withNull = twoTables.freeze();
+    assertEquals(new HashMap<String, String>(twoTables), withNull);
+    assertTrue(withNull.containsKey("null"));
+    assertNull(withNull.get("null"));
+
+    // the copy doesn't follow the source
+    twoTables.put("key_0", "changed");
+    assertEquals("value_0", withNull.get("key_0"));
+
+    for (int i = 0; i < n; i++) {
+      assertEquals("value_" + i, frozen.get("key_" + i));
+      assertNull(frozen.get("absent_" + i));
+    }
+    assertEquals(n, frozen.size());
+    assertEquals(0, FrozenCuckooHashMap.copyOf(Collections.<String, String>emptyMap()).size());
+
+    try {
+      frozen.put("key", "value");
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      frozen.entrySet().iterator().remove();
+      fail();
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    // tables that large don't fit into one array; only the capacity is looked at before that
+    NotThreadSafeCuckooHashMap<String, String> huge =
+        new NotThreadSafeCuckooHashMap<String, String>();
+    huge.capacity = 1 << 29;
+    try {
+      new FrozenCuckooHashMap<String, String>(huge);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // other threads read the map without any synchronization of their own
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    final int threads = 4;
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    final CountDownLatch end = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < n; i++) {
+              assertEquals("value_" + i, frozen.get("key_" + i));
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+    end.await();
+    service.shutdown();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+  }
+
+  @Test
+  public void testFreezeDuringWrites() throws InterruptedException {
+    final ThreadSafeCuckooHashMap<String, String> map =
+        new ThreadSafeCuckooHashMap<String, String>(4);
+    final int stable = 50000;
+    for (int i = 0; i < stable; i++) {
+      map.put("stable_" + i, "value_" + i);
+    }
+
+    // writers keep going until the last copy is made
+    int threadsCount = 4;
+    final int window = 1000;
+    ExecutorService service = Executors.newFixedThreadPool(threadsCount);
+    final CountDownLatch stop = new CountDownLatch(1);
+    final CountDownLatch end = new CountDownLatch(threadsCount);
+    for (int i = 0; i < threadsCount; i++) {
+      final int ii = i;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; stop.getCount() > 0; j++) {
+              map.put("key_" + ii + "_" + j, "value_" + j);
+              if (j >= window) {
+                map.remove("key_" + ii + "_" + (j - window));
+              }
+            }
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    try {
+      for (int k = 0; k < 5; k++) {
+        FrozenCuckooHashMap<String, String> frozen = map.freeze();
+        for (int i = 0; i < stable; i++) {
+          assertEquals("value_" + i, frozen.get("stable_" + i));
+        }
+        // the other keys may have been removed since they were copied
+        int copied = 0;
+        for (Map.Entry<String, String> e : frozen.entrySet()) {
+          assertEquals(e.getValue(), frozen.get(e.getKey()));
+          copied++;
+        }
+        assertEquals(frozen.size(), copied);
+      }
+    } finally {
+      stop.countDown();
+    }
+
+    end.await();
+    service.shutdown();
+  }
+
+  @Test
+  public void testBoundedLookups() throws InterruptedException {
+    CuckooMetrics metrics = new CuckooMetrics();
+    final ThreadSafeCuckooHashMap<String, String> map =
+        new ThreadSafeCuckooHashMap<String, String>(1024, 3, new SeededHasher(), false, metrics);
+    // every lookup stops the relocations while it reads the slots
+    map.setMaxLookupRetries(0);
+
+    final int stable = 1000;
+    for (int i = 0; i < stable; i++) {
+      map.put("stable_" + i, "value_" + i);
+    }
+
+    // writers keep the tables full, so that their puts move the stable entries around, while
+    // readers look up the stable entries and absent keys, which need the slots to be read twice
+    final int threads = 4;
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    final CountDownLatch end = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int tt = t;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              if (tt % 2 == 0) {
+                String key = "key_" + tt + "_" + i;
+                map.put(key, key);
+                if (i >= 500) {
+                  map.remove("key_" + tt + "_" + (i - 500));
+                }
+              } else {
+                assertEquals("value_" + i % stable, map.get("stable_" + i % stable));
+                assertNull(map.get("absent_" + i));
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+    end.await();
+    service.shutdown();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+
+    assertEquals(stable + 1000, map.size());
+    for (int i = 0; i < stable; i++) {
+      assertEquals("value_" + i, map.get("stable_" + i));
+    }
+    assertTrue(metrics.getSlowLookups() >= threads / 2 * 20000);
+  }
+
+  @Test
+  public void testPinnedLookupsAreBounded() throws InterruptedException {
+    CuckooMetrics metrics = new CuckooMetrics();
+    final ThreadSafeCuckooHashMap<Object, String> map =
+        new ThreadSafeCuckooHashMap<Object, String>(2048, 3, new SeededHasher(), false, metrics);
+    map.setMaxLookupRetries(0);
+    for (int i = 0; i < 1000; i++) {
+      map.put("stable_" + i, "value_" + i);
+    }
+
+    // a lookup compares the key with the entry of each of its slots once per read, and with the
+    // entries of the stash once, however long writers keep moving entries through the slots
+    final int maxCompares = (1 + ThreadSafeCuckooHashMap.PINNED_READS) * 3 + map.STASH_SIZE;
+    final int threads = 4;
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    final CountDownLatch end = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int tt = t;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              if (tt % 2 == 0) {
+                map.put("key_" + tt + "_" + i, "value");
+                if (i >= 500) {
+                  map.remove("key_" + tt + "_" + (i - 500));
+                }
+              } else {
+                final AtomicInteger compares = new AtomicInteger();
+                final int hash = tt * 20000 + i;
+                Object key = new Object() {
+                  @Override
+                  public int hashCode() {
+                    return hash;
+                  }
+
+                  @Override
+                  public boolean equals(Object o) {
+                    compares.incrementAndGet();
+                    // a slow comparison, during which the writers move entries through the slots
+                    Thread.yield();
+                    return o == this;
+                  }
+                };
+                assertNull(map.get(key));
+                assertTrue(compares.get() <= maxCompares);
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+    end.await();
+    service.shutdown();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+    assertEquals(0, metrics.getResizes());
+    assertTrue(metrics.getSlowLookups() >= threads / 2 * 20000);
+  }
+
+  /**
+   * Several threads put their own keys, read each of them back and remove every third one.
+   */
+  private void checkConcurrentUpdates(final Map<String, String> map) throws InterruptedException {
+    final int threads = 4;
+    final int perThread = 20000;
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    ExecutorService service = Executors.newFixedThreadPool(threads);
+    final CountDownLatch end = new CountDownLatch(threads);
+
+    for (int t = 0; t < threads; t++) {
+      final int tt = t;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < perThread; i++) {
+              String key = "key_" + tt + "_" + i;
+              assertNull(map.put(key, key));
+              assertEquals(key, map.get(key));
+              if (i % 3 == 0) {
+                assertEquals(key, map.remove(key));
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    end.await();
+    service.shutdown();
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < perThread; i++) {
+        String key = "key_" + t + "_" + i;
+        assertEquals(i % 3 == 0 ? null : key, map.get(key));
+      }
+    }
+    assertEquals(threads * (perThread - (perThread + 2) / 3), map.size());
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    CuckooMetrics metrics = new CuckooMetrics();
+    ThreadSafeCuckooHashMap<String, String> map =
+        new ThreadSafeCuckooHashMap<String, String>(4, new SeededHasher(), false, metrics);
+
+    int n = 10000;
+    for (int i = 0; i < n; i++) {
+      map.put("key_" + i, "value_" + i);
+    }
+    for (int i = 0; i < n; i++) {
+      assertEquals("value_" + i, map.get("key_" + i));
+    }
 
+    CuckooStats stats = metrics.snapshot();
+    long keys = stats.getStashedEntries();
+    for (long count : stats.getPathLengths()) {
+      keys += count;
+    }
+    assertEquals(n, keys);
+    assertTrue(stats.getPathLengthCount(0) < n);
+    assertTrue(stats.getAveragePathLength() > 0);
+    assertTrue(stats.getResizes() > 0);
+    assertTrue(stats.getHelpRelocates() > 0);
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name =
+        new ObjectName("com.github.lpld.cuckoo:type=CuckooMap,name=test");
+    server.registerMBean(metrics, name);
+    try {
+      assertEquals(stats.getResizes(), server.getAttribute(name, "Resizes"));
+    } finally {
+      server.unregisterMBean(name);
+    }
+  }
+
+  private void checkGrowth(Map<String, String> map) {
+    final int itcount = 100000;
+
+    for (int i = 0; i < itcount; i++) {
+      assertNull(map.put("key_" + i, "value_" + i));
+    }
+    assertEquals(itcount, map.size());
 
+    for (int i = 0; i < itcount; i++) {
+      assertEquals("value_" + i, map.get("key_" + i));
+    }
+
+    for (int i = 0; i < itcount; i += 2) {
+      assertEquals("value_" + i, map.remove("key_" + i));
+    }
+    assertEquals(itcount / 2, map.size());
+
+    for (int i = 0; i < itcount; i++) {
+      assertEquals(i % 2 == 0 ? null : "value_" + i, map.get("key_" + i));
+    }
   }
 
   @Test
@@ -217,4 +1896,78 @@ public class CuckooTest {
 
 
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testGrowth() {
+    Map<String, String> map = new ThreadSafeCuckooHashMap<String, String>(4);
+
+    final int itcount = 10000;
+
+    for (int i = 0; i < itcount; i++) {
+      assertNull(map.put("key_" + i, "value_" + i));
+    }
+
+    for (int i = 0; i < itcount; i++) {
+      assertEquals("value_" + i, map.get("key_" + i));
+    }
+
+    for (int i = 0; i < itcount; i += 2) {
+      assertEquals("value_" + i, map.remove("key_" + i));
+    }
+
+    for (int i = 0; i < itcount; i++) {
+      assertEquals(i % 2 == 0 ? null : "value_" + i, map.get("key_" + i));
+    }
+  }
+
+  @Test
+  public void testParallelGrowth() throws InterruptedException {
+    final Map<String, String> map = new ThreadSafeCuckooHashMap<String, String>(16);
+
+    final int threadsCount = 8;
+    final int iterations = 5000;
+
+    ExecutorService service = Executors.newFixedThreadPool(threadsCount);
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch end = new CountDownLatch(threadsCount);
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+    for (int i = 0; i < threadsCount; i++) {
+      final int ii = i;
+      service.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < iterations; j++) {
+              String key = "key_" + ii + "_" + j;
+              assertNull(map.put(key, "value_" + j));
+              assertEquals("value_" + j, map.get(key));
+
+              if (j > 0) {
+                // a key inserted before must survive all the resizes made since
+                assertEquals("value_" + (j - 1), map.get("key_" + ii + "_" + (j - 1)));
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            end.countDown();
+          }
+        }
+      });
+    }
+
+    start.countDown();
+    end.await();
+    service.shutdown();
+
+    assertEquals(Collections.<Throwable>emptyList(), errors);
+
+    for (int i = 0; i < threadsCount; i++) {
+      for (int j = 0; j < iterations; j++) {
+        assertEquals("value_" + j, map.get("key_" + i + "_" + j));
+      }
+    }
+  }
+}